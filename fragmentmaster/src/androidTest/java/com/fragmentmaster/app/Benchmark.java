@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * Measures the time and allocations of an operation, on the calling thread.
+ * <p/>
+ * The operation is warmed up first, then run in rounds of a fixed number of
+ * operations. The reported time is the median of the rounds, allocations are
+ * averaged over all rounds.
+ */
+final class Benchmark {
+
+    interface Body {
+        /**
+         * Run the operation once.
+         *
+         * @param i The index of the operation in its round.
+         */
+        void run(int i);
+    }
+
+    private static final int ROUNDS = 9;
+
+    private static final long WARM_UP_MILLIS = 200;
+
+    private Benchmark() {
+    }
+
+    @SuppressWarnings("deprecation")
+    static Result measure(String name, int operations, Body body) {
+        long warmUpEnd = SystemClock.uptimeMillis() + WARM_UP_MILLIS;
+        while (SystemClock.uptimeMillis() < warmUpEnd) {
+            for (int i = 0; i < operations; i++) {
+                body.run(i);
+            }
+        }
+
+        long[] rounds = new long[ROUNDS];
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int r = 0; r < ROUNDS; r++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    body.run(i);
+                }
+                rounds[r] = System.nanoTime() - start;
+            }
+            long total = (long) ROUNDS * operations;
+            return new Result(name, median(rounds) / operations,
+                    (double) Debug.getThreadAllocCount() / total,
+                    (double) Debug.getThreadAllocSize() / total);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = new long[values.length];
+        System.arraycopy(values, 0, sorted, 0, values.length);
+        java.util.Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    static final class Result {
+
+        final String mName;
+
+        final long mNanosPerOp;
+
+        final double mAllocationsPerOp;
+
+        final double mBytesPerOp;
+
+        Result(String name, long nanosPerOp, double allocationsPerOp, double bytesPerOp) {
+            mName = name;
+            mNanosPerOp = nanosPerOp;
+            mAllocationsPerOp = allocationsPerOp;
+            mBytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mNanosPerOp + "ns/op, " + mAllocationsPerOp
+                    + " allocs/op, " + mBytesPerOp + " bytes/op";
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+
+/**
+ * Collects benchmark results of a test run, and writes them as JSON into the
+ * external files directory of the test app, so releases can be compared:
+ * <pre>
+ * adb pull /sdcard/Android/data/com.fragmentmaster.test/files/fragmentmaster-benchmarks.json
+ * </pre>
+ */
+final class BenchmarkReport {
+
+    private static final String TAG = "FragmentMasterBenchmark";
+
+    static final String FILE_NAME = "fragmentmaster-benchmarks.json";
+
+    // Results of the whole run, by name.
+    private static final LinkedHashMap<String, Benchmark.Result> sResults =
+            new LinkedHashMap<String, Benchmark.Result>();
+
+    private BenchmarkReport() {
+    }
+
+    /**
+     * Add the result, and rewrite the report with all results so far.
+     */
+    static synchronized void add(Context context, Benchmark.Result result) {
+        Log.i(TAG, result.toString());
+        sResults.put(result.mName, result);
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        File file = new File(dir, FILE_NAME);
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                write(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+        }
+    }
+
+    private static void write(Writer writer) throws IOException {
+        writer.write("{\n  \"device\": \"" + Build.MANUFACTURER + " " + Build.MODEL + "\",\n");
+        writer.write("  \"sdk\": " + Build.VERSION.SDK_INT + ",\n");
+        writer.write("  \"results\": [");
+        boolean first = true;
+        for (Benchmark.Result result : sResults.values()) {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("    { \"name\": \"" + result.mName + "\""
+                    + ", \"nsPerOp\": " + result.mNanosPerOp
+                    + ", \"allocsPerOp\": " + result.mAllocationsPerOp
+                    + ", \"bytesPerOp\": " + result.mBytesPerOp + " }");
+        }
+        writer.write("\n  ]\n}\n");
+    }
+}
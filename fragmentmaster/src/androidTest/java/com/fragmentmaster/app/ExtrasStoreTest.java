@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+public class ExtrasStoreTest extends AndroidTestCase {
+
+    private ExtrasStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = ExtrasStore.open(getContext(), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.deleteSession();
+        ExtrasStore.awaitWrites();
+        super.tearDown();
+    }
+
+    public void testWriteRead() {
+        String handle = mStore.write(newExtras("value"));
+        assertNotNull(handle);
+        assertTrue(mStore.owns(handle));
+        ExtrasStore.awaitWrites();
+
+        assertTrue(new File(handle).isFile());
+        Bundle extras = ExtrasStore.read(handle, getClass().getClassLoader());
+        assertNotNull(extras);
+        assertEquals("value", extras.getString("key"));
+        assertEquals(1024, extras.getByteArray("data").length);
+    }
+
+    public void testReadWaitsForPendingWrite() {
+        String handle = mStore.write(newExtras("value"));
+
+        Bundle extras = ExtrasStore.read(handle, getClass().getClassLoader());
+        assertNotNull(extras);
+        assertEquals("value", extras.getString("key"));
+    }
+
+    public void testCopyKeepsExtrasInMemory() {
+        Request request = new Request(TestFragment.class).replaceExtras(newExtras("value"));
+        request.setExtrasHandle(mStore.write(request.loadExtras()));
+        String handle = request.getExtrasHandle();
+        // Not written yet, or deleted, the copy mustn't need the file.
+        ExtrasStore.awaitWrites();
+        assertTrue(new File(handle).delete());
+
+        Request copy = new Request(request);
+        assertEquals(handle, copy.getExtrasHandle());
+        assertEquals("value", copy.getStringExtra("key"));
+    }
+
+    public void testReadMissingFile() {
+        String handle = mStore.write(newExtras("value"));
+        ExtrasStore.awaitWrites();
+        assertTrue(new File(handle).delete());
+
+        assertNull(ExtrasStore.read(handle, getClass().getClassLoader()));
+    }
+
+    public void testReleaseDeletesAfterLastReference() {
+        String handle = mStore.write(newExtras("value"));
+        ExtrasStore.retain(handle);
+        ExtrasStore.retain(handle);
+        assertEquals(2, ExtrasStore.getRefCount(handle));
+
+        ExtrasStore.release(handle);
+        ExtrasStore.awaitWrites();
+        assertTrue(new File(handle).isFile());
+
+        ExtrasStore.release(handle);
+        ExtrasStore.awaitWrites();
+        assertEquals(0, ExtrasStore.getRefCount(handle));
+        assertFalse(new File(handle).exists());
+    }
+
+    public void testRequestCopiesDontRetain() {
+        Request request = newOverflowedRequest();
+        String handle = request.getExtrasHandle();
+
+        Request copy = new Request(request);
+        assertEquals(handle, copy.getExtrasHandle());
+        assertEquals(0, ExtrasStore.getRefCount(handle));
+
+        // The copy keeps the extras once it's detached.
+        copy.detachExtras();
+        assertNull(copy.getExtrasHandle());
+        assertEquals("value", copy.getStringExtra("key"));
+    }
+
+    public void testRecordsReleaseOnDestroyAfterRemove() {
+        Records records = new Records();
+        records.setExtrasStore(mStore);
+        IMasterFragment fragment = new TestFragment();
+        fragment.setRequest(newOverflowedRequest());
+        String handle = fragment.getRequest().getExtrasHandle();
+
+        records.add(fragment, null, -1);
+        assertEquals(1, ExtrasStore.getRefCount(handle));
+
+        // A removed fragment may still be visible.
+        records.remove(fragment);
+        assertEquals(1, ExtrasStore.getRefCount(handle));
+
+        records.onFragmentDestroyed(fragment);
+        ExtrasStore.awaitWrites();
+        assertEquals(0, ExtrasStore.getRefCount(handle));
+        assertFalse(new File(handle).exists());
+        // The Request which wrote the extras still has them in memory.
+        assertEquals("value", fragment.getRequest().getStringExtra("key"));
+    }
+
+    public void testRecordsDropKeepsFiles() {
+        Records records = new Records();
+        records.setExtrasStore(mStore);
+        IMasterFragment kept = new TestFragment();
+        kept.setRequest(newOverflowedRequest());
+        IMasterFragment removed = new TestFragment();
+        removed.setRequest(newOverflowedRequest());
+        records.add(kept, null, -1);
+        records.add(removed, null, -1);
+        records.remove(removed);
+
+        // The activity is destroyed for a configuration change.
+        records.onFragmentDestroyed(kept);
+        records.dropExtras();
+        ExtrasStore.awaitWrites();
+
+        String handle = kept.getRequest().getExtrasHandle();
+        assertEquals(0, ExtrasStore.getRefCount(handle));
+        assertEquals(0, ExtrasStore.getRefCount(removed.getRequest().getExtrasHandle()));
+        assertTrue(new File(handle).isFile());
+    }
+
+    public void testCollectGarbage() {
+        String retained = mStore.write(newExtras("retained"));
+        String garbage = mStore.write(newExtras("garbage"));
+        ExtrasStore.retain(retained);
+
+        mStore.collectGarbage();
+        ExtrasStore.awaitWrites();
+
+        assertTrue(new File(retained).isFile());
+        assertFalse(new File(garbage).exists());
+    }
+
+    public void testDeleteSession() {
+        String handle = mStore.write(newExtras("value"));
+        ExtrasStore.retain(handle);
+
+        mStore.deleteSession();
+        ExtrasStore.awaitWrites();
+
+        assertEquals(0, ExtrasStore.getRefCount(handle));
+        assertFalse(new File(handle).getParentFile().exists());
+    }
+
+    private Request newOverflowedRequest() {
+        Request request = new Request(TestFragment.class).replaceExtras(newExtras("value"));
+        request.setExtrasHandle(mStore.write(request.loadExtras()));
+        return request;
+    }
+
+    private static Bundle newExtras(String value) {
+        Bundle extras = new Bundle();
+        extras.putString("key", value);
+        extras.putByteArray("data", new byte[1024]);
+        return extras;
+    }
+}
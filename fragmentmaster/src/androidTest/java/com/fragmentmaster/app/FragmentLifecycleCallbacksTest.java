@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.ActivityInstrumentationTestCase2;
+
+public class FragmentLifecycleCallbacksTest
+        extends ActivityInstrumentationTestCase2<TestMasterActivity> {
+
+    private static final int DISPATCH_COUNT = 1000;
+
+    private FragmentMaster mFragmentMaster;
+
+    private CountingCallbacks[] mCallbacks;
+
+    public FragmentLifecycleCallbacksTest() {
+        super(TestMasterActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFragmentMaster = getActivity().getFragmentMaster();
+        mCallbacks = new CountingCallbacks[3];
+        for (int i = 0; i < mCallbacks.length; i++) {
+            mCallbacks[i] = new CountingCallbacks();
+            mFragmentMaster.registerFragmentLifecycleCallbacks(mCallbacks[i]);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountingCallbacks callbacks : mCallbacks) {
+            mFragmentMaster.unregisterFragmentLifecycleCallbacks(callbacks);
+        }
+        super.tearDown();
+    }
+
+    public void testDispatchReachesAllCallbacks() {
+        IMasterFragment fragment = new TestFragment();
+        dispatchAll(fragment, null);
+        for (CountingCallbacks callbacks : mCallbacks) {
+            assertEquals(12, callbacks.mCount);
+        }
+    }
+
+    public void testUnregisteredCallbacksAreNotCalled() {
+        IMasterFragment fragment = new TestFragment();
+        mFragmentMaster.unregisterFragmentLifecycleCallbacks(mCallbacks[1]);
+        dispatchAll(fragment, null);
+        assertEquals(12, mCallbacks[0].mCount);
+        assertEquals(0, mCallbacks[1].mCount);
+        assertEquals(12, mCallbacks[2].mCount);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDispatchDoesNotAllocate() {
+        IMasterFragment fragment = new TestFragment();
+        Bundle state = new Bundle();
+        // Warm up, so nothing is allocated by lazy initialization.
+        dispatchAll(fragment, state);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < DISPATCH_COUNT; i++) {
+                dispatchAll(fragment, state);
+            }
+            assertEquals(0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        for (CountingCallbacks callbacks : mCallbacks) {
+            assertEquals(12 * (DISPATCH_COUNT + 1), callbacks.mCount);
+        }
+    }
+
+    private void dispatchAll(IMasterFragment fragment, Bundle state) {
+        mFragmentMaster.dispatchFragmentAttached(fragment);
+        mFragmentMaster.dispatchFragmentCreated(fragment, state);
+        mFragmentMaster.dispatchFragmentViewCreated(fragment);
+        mFragmentMaster.dispatchFragmentStarted(fragment);
+        mFragmentMaster.dispatchFragmentResumed(fragment);
+        mFragmentMaster.dispatchFragmentActivated(fragment);
+        mFragmentMaster.dispatchFragmentDeactivated(fragment);
+        mFragmentMaster.dispatchFragmentPaused(fragment);
+        mFragmentMaster.dispatchFragmentStopped(fragment);
+        mFragmentMaster.dispatchFragmentSaveInstanceState(fragment, state);
+        mFragmentMaster.dispatchFragmentDestroyed(fragment);
+        mFragmentMaster.dispatchFragmentDetached(fragment);
+    }
+
+    private static class CountingCallbacks extends FragmentMaster.SimpleFragmentLifecycleCallbacks {
+
+        int mCount = 0;
+
+        @Override
+        public void onFragmentAttached(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentCreated(IMasterFragment fragment, Bundle savedInstanceState) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentViewCreated(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentStarted(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentResumed(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentActivated(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentDeactivated(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentPaused(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentStopped(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentSaveInstanceState(IMasterFragment fragment, Bundle outState) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentDestroyed(IMasterFragment fragment) {
+            mCount++;
+        }
+
+        @Override
+        public void onFragmentDetached(IMasterFragment fragment) {
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.View;
+
+import com.fragmentmaster.animator.DefaultPageAnimator;
+
+/**
+ * Benchmarks of the hot paths of FragmentMaster. Results are logged and
+ * written by {@link BenchmarkReport}, run with:
+ * <pre>
+ * ./gradlew :fragmentmaster:connectedAndroidTest
+ * </pre>
+ */
+public class FragmentMasterBenchmark
+        extends ActivityInstrumentationTestCase2<TestMasterActivity> {
+
+    private static final int[] DEPTHS = {1, 10, 100};
+
+    private static final int OPERATIONS = 1000;
+
+    public FragmentMasterBenchmark() {
+        super(TestMasterActivity.class);
+    }
+
+    public void testRecordsAddRemove() {
+        for (final int depth : DEPTHS) {
+            final Records records = new Records();
+            final IMasterFragment[] fragments = newFragments(depth);
+            report(Benchmark.measure("records_add_remove_depth_" + depth, 1,
+                    new Benchmark.Body() {
+                        @Override
+                        public void run(int i) {
+                            for (int f = 0; f < depth; f++) {
+                                records.add(fragments[f], f == 0 ? null : fragments[f - 1], 0);
+                            }
+                            for (int f = depth - 1; f >= 0; f--) {
+                                records.remove(fragments[f]);
+                            }
+                        }
+                    }));
+        }
+    }
+
+    public void testRecordsIndexOf() {
+        for (final int depth : DEPTHS) {
+            final Records records = new Records();
+            final IMasterFragment[] fragments = newFragments(depth);
+            for (int f = 0; f < depth; f++) {
+                records.add(fragments[f], null, 0);
+            }
+            report(Benchmark.measure("records_index_of_depth_" + depth, OPERATIONS,
+                    new Benchmark.Body() {
+                        @Override
+                        public void run(int i) {
+                            records.indexOf(fragments[i % depth]);
+                        }
+                    }));
+        }
+    }
+
+    public void testRequestExtras() {
+        final Request request = new Request(TestFragment.class);
+        report(Benchmark.measure("request_put_get", OPERATIONS, new Benchmark.Body() {
+            @Override
+            public void run(int i) {
+                request.putExtra("int", i);
+                request.getIntExtra("int", 0);
+            }
+        }));
+    }
+
+    public void testRequestCopy() {
+        final Request request = newRequest();
+        report(Benchmark.measure("request_copy", OPERATIONS, new Benchmark.Body() {
+            @Override
+            public void run(int i) {
+                new Request(request);
+            }
+        }));
+    }
+
+    public void testRequestParcel() {
+        final Request request = newRequest();
+        report(Benchmark.measure("request_parcel", OPERATIONS, new Benchmark.Body() {
+            @Override
+            public void run(int i) {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    request.writeToParcel(parcel, 0);
+                    parcel.setDataPosition(0);
+                    Request.CREATOR.createFromParcel(parcel);
+                } finally {
+                    parcel.recycle();
+                }
+            }
+        }));
+    }
+
+    public void testFragmentMasterStateParcel() {
+        for (int depth : DEPTHS) {
+            final FragmentMasterState state = newState(depth);
+            report(Benchmark.measure("state_parcel_depth_" + depth, OPERATIONS,
+                    new Benchmark.Body() {
+                        @Override
+                        public void run(int i) {
+                            Parcel parcel = Parcel.obtain();
+                            try {
+                                state.writeToParcel(parcel, 0);
+                                parcel.setDataPosition(0);
+                                FragmentMasterState.CREATOR.createFromParcel(parcel);
+                            } finally {
+                                parcel.recycle();
+                            }
+                        }
+                    }));
+        }
+    }
+
+    public void testCallbacksDispatch() {
+        final FragmentMaster fragmentMaster = getActivity().getFragmentMaster();
+        FragmentMaster.SimpleFragmentLifecycleCallbacks[] callbacks =
+                new FragmentMaster.SimpleFragmentLifecycleCallbacks[3];
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i] = new FragmentMaster.SimpleFragmentLifecycleCallbacks();
+            fragmentMaster.registerFragmentLifecycleCallbacks(callbacks[i]);
+        }
+        try {
+            final IMasterFragment fragment = new TestFragment();
+            report(Benchmark.measure("callbacks_dispatch", OPERATIONS, new Benchmark.Body() {
+                @Override
+                public void run(int i) {
+                    fragmentMaster.dispatchFragmentStarted(fragment);
+                    fragmentMaster.dispatchFragmentStopped(fragment);
+                }
+            }));
+        } finally {
+            for (FragmentMaster.SimpleFragmentLifecycleCallbacks c : callbacks) {
+                fragmentMaster.unregisterFragmentLifecycleCallbacks(c);
+            }
+        }
+    }
+
+    public void testPageAnimatorTransform() {
+        final View page = new View(getInstrumentation().getTargetContext());
+        report(Benchmark.measure("page_animator_transform", OPERATIONS, new Benchmark.Body() {
+            @Override
+            public void run(int i) {
+                float position = (i % 100) / 100f;
+                DefaultPageAnimator.INSTANCE.transformPage(page, position, true);
+                DefaultPageAnimator.INSTANCE.transformPage(page, -position, false);
+            }
+        }));
+    }
+
+    private void report(Benchmark.Result result) {
+        BenchmarkReport.add(getInstrumentation().getTargetContext(), result);
+    }
+
+    private static IMasterFragment[] newFragments(int count) {
+        IMasterFragment[] fragments = new IMasterFragment[count];
+        for (int i = 0; i < count; i++) {
+            fragments[i] = new TestFragment();
+        }
+        return fragments;
+    }
+
+    private static Request newRequest() {
+        Bundle bundle = new Bundle();
+        bundle.putString("nested", "value");
+        return new Request(TestFragment.class)
+                .putExtra("int", 1)
+                .putExtra("string", "value")
+                .putExtra("bundle", bundle);
+    }
+
+    private static FragmentMasterState newState(int depth) {
+        FragmentMasterState state = new FragmentMasterState();
+        state.mFragments = new int[depth];
+        state.mFlags = new int[depth];
+        state.mTargets = new int[depth];
+        state.mRequestCodes = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            state.mFragments[i] = i;
+            state.mTargets[i] = -1;
+        }
+        state.mExtrasSession = "session";
+        return state;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import junit.framework.TestCase;
+
+public class FragmentMasterStateTest extends TestCase {
+
+    public void testParcelRoundTrip() {
+        FragmentMasterState state = new FragmentMasterState();
+        state.mFragments = new int[]{3, 1, 2};
+        state.mFlags = new int[]{0, FragmentMasterState.FLAG_FINISH_PENDING, 0};
+        state.mTargets = new int[]{-1, 0, -1};
+        state.mRequestCodes = new int[]{-1, 7, -1};
+        Bundle arguments = new Bundle();
+        arguments.putString("key", "value");
+        state.mDeferred = new DeferredFragment[]{
+                new DeferredFragment(TestFragment.class.getName(), arguments, null, -1, -1, "handle")
+        };
+        state.mIsSlideable = true;
+        state.mHomeFragmentApplied = true;
+        state.mExtrasSession = "session";
+        state.mPrimaryPosition = 1;
+
+        FragmentMasterState restored = roundTrip(state, FragmentMasterState.VERSION);
+
+        assertEquals(FragmentMasterState.VERSION, restored.mVersion);
+        assertEquals(3, restored.mFragments.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(state.mFragments[i], restored.mFragments[i]);
+            assertEquals(state.mFlags[i], restored.mFlags[i]);
+            assertEquals(state.mTargets[i], restored.mTargets[i]);
+            assertEquals(state.mRequestCodes[i], restored.mRequestCodes[i]);
+        }
+        assertEquals(1, restored.mDeferred.length);
+        DeferredFragment deferred = restored.mDeferred[0];
+        assertEquals(TestFragment.class.getName(), deferred.mClassName);
+        assertEquals("value", deferred.mArguments.getString("key"));
+        assertNull(deferred.mSavedState);
+        assertEquals(-1, deferred.mTargetPosition);
+        assertEquals("handle", deferred.mExtrasHandle);
+        assertTrue(restored.mIsSlideable);
+        assertTrue(restored.mHomeFragmentApplied);
+        assertEquals("session", restored.mExtrasSession);
+        assertEquals(1, restored.mPrimaryPosition);
+    }
+
+    public void testEmptyParcelRoundTrip() {
+        FragmentMasterState state = new FragmentMasterState();
+        state.mFragments = new int[0];
+        state.mFlags = new int[0];
+        state.mTargets = new int[0];
+        state.mRequestCodes = new int[0];
+
+        FragmentMasterState restored = roundTrip(state, FragmentMasterState.VERSION);
+
+        assertEquals(0, restored.mFragments.length);
+        assertEquals(0, restored.mDeferred.length);
+        assertFalse(restored.mIsSlideable);
+        assertFalse(restored.mHomeFragmentApplied);
+        assertNull(restored.mExtrasSession);
+        assertEquals(-1, restored.mPrimaryPosition);
+    }
+
+    public void testOtherVersionsAreSkipped() {
+        FragmentMasterState state = new FragmentMasterState();
+        state.mFragments = new int[]{3};
+        state.mFlags = new int[]{0};
+        state.mTargets = new int[]{-1};
+        state.mRequestCodes = new int[]{-1};
+        state.mExtrasSession = "session";
+        int[] versions = {0, FragmentMasterState.VERSION + 1, -1};
+        for (int version : versions) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                state.writeToParcel(parcel, 0);
+                parcel.writeInt(42);
+                parcel.setDataPosition(0);
+                parcel.writeInt(version);
+                parcel.setDataPosition(0);
+                FragmentMasterState restored = FragmentMasterState.CREATOR.createFromParcel(parcel);
+
+                assertEquals(version, restored.mVersion);
+                assertNull(restored.mFragments);
+                // What follows the state in the parcel is still read.
+                assertEquals(42, parcel.readInt());
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private static FragmentMasterState roundTrip(FragmentMasterState state, int version) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            state.writeToParcel(parcel, 0);
+            // The version is the first int.
+            parcel.setDataPosition(0);
+            parcel.writeInt(version);
+            parcel.setDataPosition(0);
+            return FragmentMasterState.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
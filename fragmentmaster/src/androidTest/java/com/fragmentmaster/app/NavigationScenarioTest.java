@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.app.Instrumentation;
+import android.content.pm.ActivityInfo;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * End-to-end navigation scenarios on stacks of 1 to 100 pages. The wall time
+ * and the allocations of the main thread are measured per operation, reported
+ * by {@link BenchmarkReport}, and checked against the budgets in
+ * assets/navigation-budgets.properties. A scenario over its budget fails the
+ * test, and so connectedCheck.
+ * <p/>
+ * Only the operations are measured, waiting for the stack to settle between
+ * them is not.
+ */
+public class NavigationScenarioTest
+        extends ActivityInstrumentationTestCase2<TestMasterActivity> {
+
+    private static final String BUDGETS_FILE = "navigation-budgets.properties";
+
+    private static final int[] DEPTHS = {1, 10, 100};
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static Properties sBudgets;
+
+    private TestMasterActivity mActivity;
+
+    private FragmentMasterImpl mFragmentMaster;
+
+    private final List<String> mExceeded = new ArrayList<String>();
+
+    private String mScenario;
+
+    // Accumulated over the operations of the scenario, on the main thread.
+    private long mNanos;
+
+    private long mAllocations;
+
+    private long mBytes;
+
+    private long mOperationStartNanos;
+
+    public NavigationScenarioTest() {
+        super(TestMasterActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setActivityInitialTouchMode(false);
+        setHost(getActivity());
+    }
+
+    public void testPushPop() throws Exception {
+        for (int depth : DEPTHS) {
+            begin("push_" + depth);
+            push(depth, false, true);
+            end(depth);
+
+            begin("pop_" + depth);
+            for (int i = depth - 1; i >= 0; i--) {
+                measure(new Runnable() {
+                    @Override
+                    public void run() {
+                        mFragmentMaster.finishFragment(mFragmentMaster.getPrimaryFragment(),
+                                IMasterFragment.RESULT_CANCELED, null);
+                    }
+                });
+                waitUntilSettled(i);
+            }
+            end(depth);
+        }
+        assertWithinBudgets();
+    }
+
+    public void testSwipeBack() throws Exception {
+        for (int depth : DEPTHS) {
+            // The bottom page has nothing to swipe back to.
+            push(depth + 1, true, false);
+
+            begin("swipe_back_" + depth);
+            for (int i = depth; i > 0; i--) {
+                startOperation();
+                swipeBack();
+                stopOperation();
+                waitUntilSettled(i);
+            }
+            end(depth);
+            clear();
+        }
+        assertWithinBudgets();
+    }
+
+    public void testRotate() throws Exception {
+        for (int depth : DEPTHS) {
+            push(depth, false, false);
+
+            begin("rotate_" + depth);
+            // Measured until the recreated activity is created.
+            startOperation();
+            rotate();
+            stopOperation();
+            end(1);
+            waitUntilSettled(depth);
+            clear();
+        }
+        assertWithinBudgets();
+    }
+
+    public void testSaveState() throws Exception {
+        for (int depth : DEPTHS) {
+            push(depth, false, false);
+
+            begin("save_state_" + depth);
+            measure(new Runnable() {
+                @Override
+                public void run() {
+                    getInstrumentation().callActivityOnSaveInstanceState(mActivity, new Bundle());
+                }
+            });
+            end(1);
+            clear();
+        }
+        assertWithinBudgets();
+    }
+
+    private void setHost(TestMasterActivity activity) {
+        mActivity = activity;
+        mFragmentMaster = (FragmentMasterImpl) activity.getFragmentMaster();
+    }
+
+    private void push(int count, boolean animated, boolean measured)
+            throws InterruptedException {
+        final Request request = new Request(TestFragment.class)
+                .putExtra(TestFragment.EXTRA_ANIMATED, animated);
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                List<IMasterFragment> fragments = mFragmentMaster.getFragments();
+                IMasterFragment top = fragments.isEmpty()
+                        ? null : fragments.get(fragments.size() - 1);
+                mFragmentMaster.startFragmentForResult(top, request, -1);
+            }
+        };
+        int size = mFragmentMaster.getFragments().size();
+        for (int i = 0; i < count; i++) {
+            if (measured) {
+                measure(start);
+            } else {
+                getInstrumentation().runOnMainSync(start);
+            }
+            waitUntilSettled(size + i + 1);
+        }
+    }
+
+    // Like TouchUtils.drag, without waiting for the main thread to be idle
+    // after the gesture.
+    private void swipeBack() {
+        View pager = mActivity.findViewById(FragmentMasterImpl.FRAGMENT_CONTAINER_ID);
+        int[] location = new int[2];
+        pager.getLocationOnScreen(location);
+        float fromX = location[0] + pager.getWidth() * 0.1f;
+        float toX = location[0] + pager.getWidth() * 0.9f;
+        float y = location[1] + pager.getHeight() / 2f;
+        int steps = 20;
+
+        Instrumentation instrumentation = getInstrumentation();
+        long downTime = SystemClock.uptimeMillis();
+        instrumentation.sendPointerSync(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_DOWN, fromX, y, 0));
+        for (int i = 1; i <= steps; i++) {
+            float x = fromX + (toX - fromX) * i / steps;
+            instrumentation.sendPointerSync(MotionEvent.obtain(downTime,
+                    SystemClock.uptimeMillis(), MotionEvent.ACTION_MOVE, x, y, 0));
+        }
+        instrumentation.sendPointerSync(MotionEvent.obtain(downTime,
+                SystemClock.uptimeMillis(), MotionEvent.ACTION_UP, toX, y, 0));
+    }
+
+    private void rotate() {
+        Instrumentation.ActivityMonitor monitor = getInstrumentation()
+                .addMonitor(TestMasterActivity.class.getName(), null, false);
+        try {
+            boolean portrait = mActivity.getResources().getConfiguration().orientation
+                    == Configuration.ORIENTATION_PORTRAIT;
+            mActivity.setRequestedOrientation(portrait
+                    ? ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE
+                    : ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+            TestMasterActivity activity = (TestMasterActivity) getInstrumentation()
+                    .waitForMonitorWithTimeout(monitor, TIMEOUT_MILLIS);
+            assertNotNull("Activity was not recreated", activity);
+            setActivity(activity);
+            setHost(activity);
+        } finally {
+            getInstrumentation().removeMonitor(monitor);
+        }
+    }
+
+    private void clear() throws InterruptedException {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                List<IMasterFragment> fragments = mFragmentMaster.getFragments();
+                if (!fragments.isEmpty()) {
+                    IMasterFragment bottom = fragments.get(0);
+                    mFragmentMaster.finishFragmentsAbove(bottom);
+                    mFragmentMaster.finishFragment(bottom, IMasterFragment.RESULT_CANCELED, null);
+                }
+            }
+        });
+        waitUntilSettled(0);
+    }
+
+    private void waitUntilSettled(final int size) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        final boolean[] settled = new boolean[1];
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                settled[0] = !mFragmentMaster.isScrolling()
+                        && mFragmentMaster.getFragments().size() == size;
+            }
+        };
+        while (true) {
+            getInstrumentation().waitForIdleSync();
+            getInstrumentation().runOnMainSync(check);
+            if (settled[0]) {
+                return;
+            }
+            if (SystemClock.uptimeMillis() > deadline) {
+                fail("Stack of " + mFragmentMaster.getFragments().size()
+                        + " pages did not settle at " + size);
+            }
+            Thread.sleep(16);
+        }
+    }
+
+    private void begin(String scenario) {
+        mScenario = scenario;
+        mNanos = 0;
+        mAllocations = 0;
+        mBytes = 0;
+        getInstrumentation().waitForIdleSync();
+        Runtime.getRuntime().gc();
+    }
+
+    /**
+     * Run one operation of the scenario on the main thread, and measure it.
+     */
+    private void measure(final Runnable operation) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                onStartOperation();
+                operation.run();
+                onStopOperation();
+            }
+        });
+    }
+
+    /**
+     * Start measuring an operation which spans several messages of the main
+     * thread, until {@link #stopOperation()}.
+     */
+    private void startOperation() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                onStartOperation();
+            }
+        });
+    }
+
+    private void stopOperation() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                onStopOperation();
+            }
+        });
+    }
+
+    // Allocations are counted per thread, other threads of the process,
+    // including this test's, aren't measured.
+    @SuppressWarnings("deprecation")
+    private void onStartOperation() {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        mOperationStartNanos = System.nanoTime();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void onStopOperation() {
+        mNanos += System.nanoTime() - mOperationStartNanos;
+        mAllocations += Debug.getThreadAllocCount();
+        mBytes += Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+    }
+
+    private void end(int operations) throws IOException {
+        long nanos = mNanos;
+        long bytes = mBytes;
+        long allocations = mAllocations;
+
+        long nanosPerOp = nanos / operations;
+        long bytesPerOp = bytes / operations;
+        BenchmarkReport.add(getInstrumentation().getTargetContext(),
+                new Benchmark.Result(mScenario, nanosPerOp,
+                        (double) allocations / operations, bytesPerOp));
+
+        Properties budgets = getBudgets();
+        String ms = budgets.getProperty(mScenario + ".ms");
+        if (ms != null && nanosPerOp > Long.parseLong(ms) * 1000000) {
+            mExceeded.add(mScenario + " took " + nanosPerOp / 1000000
+                    + "ms per operation, budget is " + ms + "ms");
+        }
+        String maxBytes = budgets.getProperty(mScenario + ".bytes");
+        if (maxBytes != null && bytesPerOp > Long.parseLong(maxBytes)) {
+            mExceeded.add(mScenario + " allocated " + bytesPerOp
+                    + " bytes per operation, budget is " + maxBytes + " bytes");
+        }
+    }
+
+    private void assertWithinBudgets() {
+        if (!mExceeded.isEmpty()) {
+            fail("Over budget: " + mExceeded);
+        }
+    }
+
+    private Properties getBudgets() throws IOException {
+        synchronized (NavigationScenarioTest.class) {
+            if (sBudgets == null) {
+                Properties budgets = new Properties();
+                InputStream in = getInstrumentation().getContext().getAssets().open(BUDGETS_FILE);
+                try {
+                    budgets.load(in);
+                } finally {
+                    in.close();
+                }
+                sBudgets = budgets;
+            }
+            return sBudgets;
+        }
+    }
+}
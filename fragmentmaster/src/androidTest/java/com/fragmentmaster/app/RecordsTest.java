@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.support.v4.app.FragmentManager;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RecordsTest extends ActivityInstrumentationTestCase2<TestMasterActivity> {
+
+    private FragmentManager mFragmentManager;
+
+    private IMasterFragment[] mFragments;
+
+    private Records mRecords;
+
+    public RecordsTest() {
+        super(TestMasterActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFragmentManager = getActivity().getSupportFragmentManager();
+        mFragments = new IMasterFragment[3];
+        mRecords = new Records();
+    }
+
+    // References are only given to fragments added to the FragmentManager.
+    private void addFragments() {
+        for (int i = 0; i < mFragments.length; i++) {
+            mFragments[i] = new TestFragment();
+            mFragmentManager.beginTransaction().add(mFragments[i].getFragment(), null).commit();
+            mRecords.add(mFragments[i], i == 0 ? null : mFragments[i - 1], i);
+        }
+        mFragmentManager.executePendingTransactions();
+    }
+
+    @UiThreadTest
+    public void testSaveRestoreRoundTrip() {
+        addFragments();
+
+        int[] saved = mRecords.save(mFragmentManager, null);
+        assertEquals(mFragments.length, saved.length);
+
+        Records restored = new Records();
+        IMasterFragment[] fragments = restored.restore(mFragmentManager, saved,
+                DeferredFragment.EMPTY);
+        assertEquals(mFragments.length, fragments.length);
+        assertEquals(mFragments.length, restored.size());
+        for (int i = 0; i < mFragments.length; i++) {
+            assertSame(mFragments[i], fragments[i]);
+            assertSame(mFragments[i], restored.getFragments().get(i));
+            assertEquals(i, restored.indexOf(mFragments[i]));
+        }
+        assertEquals(0, restored.getDeferredCount());
+    }
+
+    @UiThreadTest
+    public void testSaveLeavesOutExcluded() {
+        addFragments();
+        Set<IMasterFragment> excluded = new HashSet<IMasterFragment>(
+                Collections.singleton(mFragments[1]));
+
+        int[] saved = mRecords.save(mFragmentManager, excluded);
+        assertEquals(mFragments.length - 1, saved.length);
+
+        Records restored = new Records();
+        restored.restore(mFragmentManager, saved, DeferredFragment.EMPTY);
+        assertEquals(2, restored.size());
+        assertSame(mFragments[0], restored.getFragments().get(0));
+        assertSame(mFragments[2], restored.getFragments().get(1));
+        assertFalse(restored.has(mFragments[1]));
+    }
+
+    @UiThreadTest
+    public void testRestoreSkipsBadReferences() {
+        addFragments();
+        int[] saved = mRecords.save(mFragmentManager, null);
+        // FragmentManager has no fragments for references out of its range.
+        int[] withBad = {saved[0], -1, saved[2], 1000};
+
+        Records restored = new Records();
+        IMasterFragment[] fragments = restored.restore(mFragmentManager, withBad,
+                DeferredFragment.EMPTY);
+        assertSame(mFragments[0], fragments[0]);
+        assertNull(fragments[1]);
+        assertSame(mFragments[2], fragments[2]);
+        assertNull(fragments[3]);
+        assertEquals(2, restored.size());
+        assertEquals(1, restored.indexOf(mFragments[2]));
+    }
+
+    @UiThreadTest
+    public void testRestoreKeepsDeferredBelow() {
+        addFragments();
+        int[] saved = mRecords.save(mFragmentManager, null);
+        DeferredFragment[] deferred = {
+                new DeferredFragment(TestFragment.class.getName(), null, null, -1, -1, null)
+        };
+
+        Records restored = new Records();
+        restored.restore(mFragmentManager, saved, deferred);
+        assertEquals(1, restored.getDeferredCount());
+        assertSame(deferred[0], restored.peekDeferred());
+        assertEquals(mFragments.length, restored.size());
+    }
+}
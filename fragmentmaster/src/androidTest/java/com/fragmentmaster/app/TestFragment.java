@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import com.fragmentmaster.animator.PageAnimator;
+
+/**
+ * A page with an empty view. Pages are animated, unless
+ * {@link #EXTRA_ANIMATED} of the request is false.
+ */
+public class TestFragment extends MasterFragment {
+
+    static final String EXTRA_ANIMATED = "animated";
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        return new FrameLayout(inflater.getContext());
+    }
+
+    @Override
+    public PageAnimator onCreatePageAnimator() {
+        Request request = getRequest();
+        if (request != null && !request.getBooleanExtra(EXTRA_ANIMATED, true)) {
+            return null;
+        }
+        return super.onCreatePageAnimator();
+    }
+}
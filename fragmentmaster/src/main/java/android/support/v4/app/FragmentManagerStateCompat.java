@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.app;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+
+/**
+ * Access to the state FragmentActivity saves for its fragments, before it's
+ * parcelled.
+ */
+public final class FragmentManagerStateCompat {
+
+    private FragmentManagerStateCompat() {
+    }
+
+    /**
+     * Returns the FragmentManager state in the saved state of a
+     * FragmentActivity, or null if there isn't one.
+     */
+    public static Parcelable getFragmentManagerState(Bundle activityState) {
+        Parcelable state = activityState.getParcelable(FragmentActivity.FRAGMENTS_TAG);
+        return state instanceof FragmentManagerState ? state : null;
+    }
+
+    /**
+     * Returns the index of an active fragment in its FragmentManager.
+     */
+    public static int getIndex(Fragment fragment) {
+        return fragment.mIndex;
+    }
+
+    /**
+     * Returns the active fragment at index in the FragmentManager, or null if
+     * there isn't one.
+     */
+    public static Fragment getActiveFragment(FragmentManager fragmentManager, int index) {
+        ArrayList<Fragment> active = ((FragmentManagerImpl) fragmentManager).mActive;
+        if (active == null || index < 0 || index >= active.size()) {
+            return null;
+        }
+        return active.get(index);
+    }
+
+    /**
+     * Returns the parcelled size of the saved state of the fragment at index.
+     */
+    public static int sizeOfFragmentState(Parcelable fragmentManagerState, int index) {
+        FragmentState fs = getFragmentState(fragmentManagerState, index);
+        if (fs == null) {
+            return 0;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            fs.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Drop the saved view hierarchy state of the fragment at index.
+     *
+     * @return Whether there was view state to drop.
+     */
+    public static boolean dropViewState(Parcelable fragmentManagerState, int index) {
+        FragmentState fs = getFragmentState(fragmentManagerState, index);
+        if (fs == null || fs.mSavedFragmentState == null
+                || !fs.mSavedFragmentState.containsKey(FragmentManagerImpl.VIEW_STATE_TAG)) {
+            return false;
+        }
+        // The Bundle is shared with the fragment while it's INITIALIZING.
+        fs.mSavedFragmentState = new Bundle(fs.mSavedFragmentState);
+        fs.mSavedFragmentState.remove(FragmentManagerImpl.VIEW_STATE_TAG);
+        return true;
+    }
+
+    /**
+     * Drop the fragment at index, so it won't be restored. Fragments
+     * targeting it will be restored without a target.
+     *
+     * @return The number of bytes the parcelled FragmentManagerState shrank
+     * by.
+     */
+    public static int dropFragment(Parcelable fragmentManagerState, int index) {
+        FragmentManagerState fms = (FragmentManagerState) fragmentManagerState;
+        if (getFragmentState(fms, index) == null) {
+            return 0;
+        }
+        // A null entry is parcelled as one int, like the non-null marker.
+        int removed = sizeOfFragmentState(fms, index);
+        fms.mActive[index] = null;
+        if (fms.mAdded != null) {
+            int count = 0;
+            for (int added : fms.mAdded) {
+                if (added != index) {
+                    count++;
+                }
+            }
+            if (count != fms.mAdded.length) {
+                int[] remaining = new int[count];
+                int i = 0;
+                for (int added : fms.mAdded) {
+                    if (added != index) {
+                        remaining[i++] = added;
+                    }
+                }
+                // A null array is parcelled as one int, like the length.
+                removed += (fms.mAdded.length - count) * 4;
+                fms.mAdded = remaining.length > 0 ? remaining : null;
+            }
+        }
+        for (int i = 0; i < fms.mActive.length; i++) {
+            FragmentState fs = fms.mActive[i];
+            if (fs != null && fs.mSavedFragmentState != null
+                    && fs.mSavedFragmentState.getInt(FragmentManagerImpl.TARGET_STATE_TAG, -1) == index) {
+                removed += sizeOfFragmentState(fms, i);
+                fs.mSavedFragmentState = new Bundle(fs.mSavedFragmentState);
+                fs.mSavedFragmentState.remove(FragmentManagerImpl.TARGET_STATE_TAG);
+                fs.mSavedFragmentState.remove(FragmentManagerImpl.TARGET_REQUEST_CODE_STATE_TAG);
+                removed -= sizeOfFragmentState(fms, i);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns whether the fragment at index has saved state, it doesn't if it
+     * has been dropped.
+     */
+    public static boolean hasFragmentState(Parcelable fragmentManagerState, int index) {
+        return getFragmentState(fragmentManagerState, index) != null;
+    }
+
+    public static String getClassName(Parcelable fragmentManagerState, int index) {
+        FragmentState fs = getFragmentState(fragmentManagerState, index);
+        return fs != null ? fs.mClassName : null;
+    }
+
+    public static Bundle getArguments(Parcelable fragmentManagerState, int index) {
+        FragmentState fs = getFragmentState(fragmentManagerState, index);
+        return fs != null ? fs.mArguments : null;
+    }
+
+    /**
+     * Returns the saved state of the fragment at index, to restore it into a
+     * new instance by {@link Fragment#setInitialSavedState(Fragment.SavedState)}.
+     * Its target is not kept, as it refers to an index in the FragmentManager.
+     */
+    public static Fragment.SavedState getSavedState(Parcelable fragmentManagerState, int index) {
+        FragmentState fs = getFragmentState(fragmentManagerState, index);
+        if (fs == null) {
+            return null;
+        }
+        // Copied, the Bundle may be the live fragment's.
+        Bundle state = fs.mSavedFragmentState != null
+                ? new Bundle(fs.mSavedFragmentState) : null;
+        if (state != null) {
+            state.remove(FragmentManagerImpl.TARGET_STATE_TAG);
+            state.remove(FragmentManagerImpl.TARGET_REQUEST_CODE_STATE_TAG);
+        }
+        return new Fragment.SavedState(state);
+    }
+
+    private static FragmentState getFragmentState(Parcelable fragmentManagerState, int index) {
+        FragmentManagerState fms = (FragmentManagerState) fragmentManagerState;
+        if (fms == null || fms.mActive == null || index < 0 || index >= fms.mActive.length) {
+            return null;
+        }
+        return fms.mActive[index];
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.app;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/**
+ * Access to the state a Fragment keeps after it's saved or restored.
+ */
+public final class FragmentSavedStateCompat {
+
+    private FragmentSavedStateCompat() {
+    }
+
+    /**
+     * Returns the parcelled size of the state the fragment currently keeps:
+     * its view hierarchy state, saved when its view was destroyed, and the
+     * state it was restored from. Nothing is saved to measure it.
+     */
+    public static int sizeOfSavedState(Fragment fragment) {
+        if (fragment.mSavedViewState == null && fragment.mSavedFragmentState == null) {
+            return 0;
+        }
+        Bundle state = new Bundle();
+        if (fragment.mSavedViewState != null) {
+            state.putSparseParcelableArray("views", fragment.mSavedViewState);
+        }
+        if (fragment.mSavedFragmentState != null) {
+            state.putBundle("state", fragment.mSavedFragmentState);
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(state);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
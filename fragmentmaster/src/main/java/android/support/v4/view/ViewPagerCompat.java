@@ -254,6 +254,11 @@ public class ViewPagerCompat extends ViewGroup {
 
     private static final ViewPositionComparator sPositionComparator = new ViewPositionComparator();
 
+    // Trace section of populate, shown in systrace.
+    private static final String TRACE_POPULATE = "FM:populate";
+
+    private static boolean sTraceEnabled = false;
+
     /**
      * Indicates that the pager is in an idle, settled state. The current page
      * is fully in view and no animation is in progress.
@@ -910,7 +915,28 @@ public class ViewPagerCompat extends ViewGroup {
         populate(mCurItem);
     }
 
+    /**
+     * Set whether populate is traced. It only works on API 18 and above.
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        sTraceEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
     void populate(int newCurrentItem) {
+        final boolean traced = sTraceEnabled;
+        if (traced) {
+            TraceJellybeanMR2.beginSection(TRACE_POPULATE);
+        }
+        try {
+            populateInternal(newCurrentItem);
+        } finally {
+            if (traced) {
+                TraceJellybeanMR2.endSection();
+            }
+        }
+    }
+
+    private void populateInternal(int newCurrentItem) {
         ItemInfo oldCurInfo = null;
         int focusDirection = View.FOCUS_FORWARD;
         if (mCurItem != newCurrentItem) {
@@ -2904,6 +2930,17 @@ public class ViewPagerCompat extends ViewGroup {
         return new LayoutParams(getContext(), attrs);
     }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static class TraceJellybeanMR2 {
+        static void beginSection(String sectionName) {
+            android.os.Trace.beginSection(sectionName);
+        }
+
+        static void endSection() {
+            android.os.Trace.endSection();
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     class MyAccessibilityDelegate extends AccessibilityDelegateCompat {
 
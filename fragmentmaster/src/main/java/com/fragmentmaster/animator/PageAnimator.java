@@ -43,6 +43,17 @@ public abstract class PageAnimator {
         }
     }
 
+    /**
+     * Whether the foreground and background pages should be rendered into
+     * hardware layers while they are animated by this PageAnimator. Layers
+     * make alpha, scale and rotation animations cheap, but cost memory and
+     * must be redrawn if the page content changes during the animation.
+     * Return false to opt out.
+     */
+    public boolean useHardwareLayers() {
+        return true;
+    }
+
     /**
      * In this stage, transform the background page.
      *
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.List;
+
+/**
+ * Overlay showing the stack depth, pages with attached views, total view
+ * count, duration of the last transition and a rolling graph of frame times,
+ * see {@link FragmentMaster#setDebugHudEnabled(boolean)}.
+ * <p/>
+ * Nothing is allocated when it's drawn. Statistics are refreshed a few times
+ * per second, and frame times are only recorded on API 16 and above.
+ */
+class DebugHudView extends View {
+
+    private static final long REFRESH_INTERVAL = 250;
+
+    private static final int FRAME_COUNT = 120;
+
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    // Frame times taller than this are clipped in the graph.
+    private static final long GRAPH_MAX_NANOS = FRAME_INTERVAL_NANOS * 4;
+
+    private static final String STACK = "stack ";
+    private static final String LIVE_PAGES = "live pages ";
+    private static final String VIEWS = "views ";
+    private static final String LAST_TRANSITION = "last transition ";
+    private static final String MS = "ms";
+    private static final String NONE = "-";
+
+    private final FragmentMasterImpl mFragmentMaster;
+
+    private final FragmentMasterPager mPager;
+
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint mBackgroundPaint = new Paint();
+
+    private final Paint mFramePaint = new Paint();
+
+    private final Paint mJankPaint = new Paint();
+
+    private final Paint mGuidePaint = new Paint();
+
+    private final float mDensity;
+
+    private final char[][] mLines = new char[4][48];
+
+    private final int[] mLineLengths = new int[4];
+
+    // Frame durations, as a ring buffer.
+    private final long[] mFrameDurations = new long[FRAME_COUNT];
+
+    private int mFrameIndex = 0;
+
+    private long mLastFrameTimeNanos = 0;
+
+    private final float[] mFramePoints = new float[FRAME_COUNT * 4];
+
+    private final float[] mJankPoints = new float[FRAME_COUNT * 4];
+
+    private long mLastRefreshTime = 0;
+
+    private Object mFrameCallback;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    DebugHudView(FragmentMasterImpl fragmentMaster, FragmentMasterPager pager) {
+        super(fragmentMaster.getActivity());
+        mFragmentMaster = fragmentMaster;
+        mPager = pager;
+        DisplayMetrics dm = getResources().getDisplayMetrics();
+        mDensity = dm.density;
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(12 * dm.scaledDensity);
+        mBackgroundPaint.setColor(0x99000000);
+        mFramePaint.setColor(0xff4caf50);
+        mFramePaint.setStrokeWidth(mDensity);
+        mJankPaint.setColor(0xfff44336);
+        mJankPaint.setStrokeWidth(mDensity);
+        mGuidePaint.setColor(0x99ffffff);
+        mGuidePaint.setStrokeWidth(mDensity);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        post(mRefreshRunnable);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = new FrameCallbackImpl();
+            }
+            mLastFrameTimeNanos = 0;
+            ((FrameCallbackImpl) mFrameCallback).post();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mRefreshRunnable);
+        if (mFrameCallback != null) {
+            ((FrameCallbackImpl) mFrameCallback).remove();
+        }
+        super.onDetachedFromWindow();
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        if (mLastFrameTimeNanos != 0) {
+            mFrameDurations[mFrameIndex] = frameTimeNanos - mLastFrameTimeNanos;
+            mFrameIndex = (mFrameIndex + 1) % FRAME_COUNT;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+    }
+
+    private void refresh() {
+        mLastRefreshTime = SystemClock.uptimeMillis();
+        List<IMasterFragment> fragments = mFragmentMaster.getFragments();
+        int livePages = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            View view = fragments.get(i).getView();
+            if (view != null && view.getParent() != null) {
+                livePages++;
+            }
+        }
+        int views = 0;
+        final int childCount = mPager.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            views += countViews(mPager.getChildAt(i));
+        }
+
+        setLine(0, STACK, fragments.size(), null);
+        setLine(1, LIVE_PAGES, livePages, null);
+        setLine(2, VIEWS, views, null);
+        setLine(3, LAST_TRANSITION, mPager.getLastTransitionDuration(), MS);
+        invalidate();
+    }
+
+    private void setLine(int line, String label, long value, String unit) {
+        char[] buf = mLines[line];
+        int pos = appendString(buf, 0, label);
+        if (value < 0) {
+            pos = appendString(buf, pos, NONE);
+        } else {
+            pos = appendLong(buf, pos, value);
+            if (unit != null) {
+                pos = appendString(buf, pos, unit);
+            }
+        }
+        mLineLengths[line] = pos;
+    }
+
+    private static int appendString(char[] buf, int pos, String s) {
+        int length = Math.min(s.length(), buf.length - pos);
+        s.getChars(0, length, buf, pos);
+        return pos + length;
+    }
+
+    private static int appendLong(char[] buf, int pos, long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        if (pos + digits > buf.length) {
+            return pos;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    private static int countViews(View view) {
+        int count = 1;
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                count += countViews(group.getChildAt(i));
+            }
+        }
+        return count;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mLastRefreshTime == 0) {
+            return;
+        }
+        final float padding = 8 * mDensity;
+        final float lineHeight = mTextPaint.getFontSpacing();
+        final float graphWidth = FRAME_COUNT * 2 * mDensity;
+        final float graphHeight = 48 * mDensity;
+        final float left = padding;
+        final float top = padding;
+        final float right = left + graphWidth + padding * 2;
+        final float bottom = top + padding * 3 + lineHeight * mLines.length + graphHeight;
+        canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
+
+        float baseline = top + padding - mTextPaint.ascent();
+        for (int i = 0; i < mLines.length; i++) {
+            canvas.drawText(mLines[i], 0, mLineLengths[i], left + padding, baseline, mTextPaint);
+            baseline += lineHeight;
+        }
+
+        // Frame graph, oldest frame first.
+        final float graphLeft = left + padding;
+        final float graphBottom = bottom - padding;
+        final float barWidth = graphWidth / FRAME_COUNT;
+        final long jankThreshold = FRAME_INTERVAL_NANOS * 3 / 2;
+        int framePoints = 0;
+        int jankPoints = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            long duration = mFrameDurations[(mFrameIndex + i) % FRAME_COUNT];
+            if (duration == 0) {
+                continue;
+            }
+            float x = graphLeft + barWidth * i + barWidth / 2;
+            float y = graphBottom - graphHeight * Math.min(duration, GRAPH_MAX_NANOS) / GRAPH_MAX_NANOS;
+            float[] points = duration > jankThreshold ? mJankPoints : mFramePoints;
+            int offset = duration > jankThreshold ? jankPoints : framePoints;
+            points[offset] = x;
+            points[offset + 1] = graphBottom;
+            points[offset + 2] = x;
+            points[offset + 3] = y;
+            if (duration > jankThreshold) {
+                jankPoints += 4;
+            } else {
+                framePoints += 4;
+            }
+        }
+        canvas.drawLines(mFramePoints, 0, framePoints, mFramePaint);
+        canvas.drawLines(mJankPoints, 0, jankPoints, mJankPaint);
+        float guideY = graphBottom - graphHeight * FRAME_INTERVAL_NANOS / GRAPH_MAX_NANOS;
+        canvas.drawLine(graphLeft, guideY, graphLeft + graphWidth, guideY, mGuidePaint);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameCallbackImpl implements Choreographer.FrameCallback {
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+            post();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.v4.app.Fragment;
+
+/**
+ * A fragment at the bottom of the stack which is kept as saved state, and
+ * restored when navigation reaches it, see
+ * {@link FragmentMaster#setLazyRestoreDepth(int)}.
+ * <p/>
+ * The saved state, which includes the fragment's Request, stays parcelled
+ * until the fragment is restored.
+ */
+final class DeferredFragment implements Parcelable {
+
+    static final DeferredFragment[] EMPTY = new DeferredFragment[0];
+
+    final String mClassName;
+
+    final Bundle mArguments;
+
+    final Fragment.SavedState mSavedState;
+
+    // Position of the target in the stack, or -1 if there isn't one.
+    final int mTargetPosition;
+
+    final int mTargetRequestCode;
+
+    // Handle of the Request extras in ExtrasStore, or null.
+    String mExtrasHandle;
+
+    DeferredFragment(String className, Bundle arguments, Fragment.SavedState savedState,
+                     int targetPosition, int targetRequestCode, String extrasHandle) {
+        mClassName = className;
+        mArguments = arguments;
+        mSavedState = savedState;
+        mTargetPosition = targetPosition;
+        mTargetRequestCode = targetRequestCode;
+        mExtrasHandle = extrasHandle;
+    }
+
+    private DeferredFragment(Parcel in) {
+        mClassName = in.readString();
+        mArguments = in.readBundle();
+        mSavedState = in.readParcelable(DeferredFragment.class.getClassLoader());
+        mTargetPosition = in.readInt();
+        mTargetRequestCode = in.readInt();
+        mExtrasHandle = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mClassName);
+        dest.writeBundle(mArguments);
+        dest.writeParcelable(mSavedState, flags);
+        dest.writeInt(mTargetPosition);
+        dest.writeInt(mTargetRequestCode);
+        dest.writeString(mExtrasHandle);
+    }
+
+    @Override
+    public String toString() {
+        return "DeferredFragment { " + mClassName + " }";
+    }
+
+    public static final Parcelable.Creator<DeferredFragment> CREATOR
+            = new Parcelable.Creator<DeferredFragment>() {
+        public DeferredFragment createFromParcel(Parcel in) {
+            return new DeferredFragment(in);
+        }
+
+        public DeferredFragment[] newArray(int size) {
+            return new DeferredFragment[size];
+        }
+    };
+}
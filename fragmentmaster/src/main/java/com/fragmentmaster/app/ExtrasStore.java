@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps large Request extras in app-private files, so Requests only carry
+ * the paths of the files, see
+ * {@link FragmentMaster#setExtrasOverflowThreshold(int)}.
+ * <p/>
+ * Each FragmentMaster has a session directory, kept in its saved state. Files
+ * are reference counted in the process by the Records holding the fragments
+ * and deferred fragments whose Requests carry their handles. A file is
+ * released when its fragment is destroyed after it's finished, and the
+ * references are dropped when the activity is destroyed, as the recreated
+ * one retains them again. Copies of a Request hold no reference, they can't
+ * load the extras once the file is deleted. Files which are not retained
+ * are collected on install, and the session directory is deleted when the
+ * activity finishes.
+ * <p/>
+ * Files are written and deleted in order on a background thread. Extras are
+ * marshalled when they are written, so the caller may keep using them, and a
+ * Request which wrote its extras keeps them in memory.
+ */
+final class ExtrasStore {
+
+    private static final String TAG = "ExtrasStore";
+
+    private static final String DIR_NAME = "fragmentmaster-extras";
+
+    // Sessions not touched for this long are considered abandoned.
+    private static final long STALE_SESSION_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    // Writes and deletes files in order, off the main thread.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ExtrasStore");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    // The latest task submitted to sExecutor.
+    private static Future<?> sLastTask;
+
+    // Writes which are not complete yet, by handle.
+    private static final HashMap<String, Future<?>> sPendingWrites =
+            new HashMap<String, Future<?>>();
+
+    // Reference counts of the handles in the process.
+    private static final HashMap<String, int[]> sRefCounts = new HashMap<String, int[]>();
+
+    private final File mDir;
+
+    private final String mSession;
+
+
+    private ExtrasStore(File dir, String session) {
+        mDir = dir;
+        mSession = session;
+    }
+
+    /**
+     * Open the store of a session, or a new session if session is null.
+     */
+    static ExtrasStore open(Context context, String session) {
+        final File base = new File(context.getFilesDir(), DIR_NAME);
+        if (session == null) {
+            session = UUID.randomUUID().toString();
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    sweepStaleSessions(base);
+                }
+            });
+        }
+        return new ExtrasStore(new File(base, session), session);
+    }
+
+    private static void sweepStaleSessions(File base) {
+        File[] sessions = base.listFiles();
+        if (sessions == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File session : sessions) {
+            if (now - session.lastModified() > STALE_SESSION_AGE) {
+                deleteDir(session);
+            }
+        }
+    }
+
+    String getSession() {
+        return mSession;
+    }
+
+    /**
+     * Write the extras into a new file. The extras are marshalled right away,
+     * and the file is written in the background.
+     *
+     * @return The handle of the file, or null if the extras can't be written.
+     */
+    String write(Bundle extras) {
+        if (extras.hasFileDescriptors()) {
+            return null;
+        }
+        final byte[] data;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(extras);
+            data = parcel.marshall();
+        } catch (RuntimeException e) {
+            // The extras contain live objects, which can't be marshalled.
+            Log.w(TAG, "Failed to marshall extras", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+
+        final File file = new File(mDir, UUID.randomUUID().toString());
+        final String handle = file.getPath();
+        synchronized (ExtrasStore.class) {
+            sPendingWrites.put(handle, submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeFile(file, data);
+                    } finally {
+                        synchronized (ExtrasStore.class) {
+                            sPendingWrites.remove(handle);
+                        }
+                    }
+                }
+            }));
+        }
+        return handle;
+    }
+
+    // No fsync, the extras are only needed as long as the process, or its
+    // saved state, which a system crash loses anyway.
+    private static void writeFile(File file, byte[] data) {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + dir);
+            return;
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write extras " + file, e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+            return;
+        }
+        dir.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Wait until the files which are being written are complete, so the
+     * handles can be saved.
+     */
+    static void awaitWrites() {
+        Future<?> lastTask;
+        synchronized (ExtrasStore.class) {
+            lastTask = sLastTask;
+        }
+        await(lastTask);
+    }
+
+    private static void await(Future<?> task) {
+        if (task == null || task.isDone()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to write extras", e);
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Future<?> submit(Runnable task) {
+        synchronized (ExtrasStore.class) {
+            sLastTask = sExecutor.submit(task);
+            return sLastTask;
+        }
+    }
+
+    /**
+     * Read the extras of a handle returned by {@link #write(Bundle)}.
+     *
+     * @return The extras, or null if they can't be read.
+     */
+    static Bundle read(String handle, ClassLoader classLoader) {
+        Future<?> pendingWrite;
+        synchronized (ExtrasStore.class) {
+            pendingWrite = sPendingWrites.get(handle);
+        }
+        // The file may still be in the queue.
+        await(pendingWrite);
+
+        byte[] data;
+        try {
+            FileInputStream in = new FileInputStream(handle);
+            try {
+                data = new byte[(int) in.getChannel().size()];
+                int count = 0;
+                while (count < data.length) {
+                    int read = in.read(data, count, data.length - count);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + handle);
+                    }
+                    count += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Extras " + handle + " are missing, they were deleted or"
+                    + " never written while a Request still referred to them", e);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read extras " + handle, e);
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(classLoader);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns the number of references of the handle in the process.
+     */
+    static synchronized int getRefCount(String handle) {
+        int[] count = sRefCounts.get(handle);
+        return count != null ? count[0] : 0;
+    }
+
+    boolean owns(String handle) {
+        return handle != null && mDir.getPath().equals(new File(handle).getParent());
+    }
+
+    static synchronized void retain(String handle) {
+        int[] count = sRefCounts.get(handle);
+        if (count == null) {
+            sRefCounts.put(handle, new int[]{1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Release a reference of the handle, the file is deleted when it was the
+     * last one.
+     */
+    static synchronized void release(final String handle) {
+        int[] count = sRefCounts.get(handle);
+        if (count != null && --count[0] == 0) {
+            sRefCounts.remove(handle);
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    new File(handle).delete();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop a reference of the handle without deleting the file, which is
+     * collected by {@link #collectGarbage()} if it's not retained again.
+     */
+    static synchronized void drop(String handle) {
+        int[] count = sRefCounts.get(handle);
+        if (count != null && --count[0] == 0) {
+            sRefCounts.remove(handle);
+        }
+    }
+
+    /**
+     * Delete the files which are not retained.
+     */
+    void collectGarbage() {
+        final File dir = mDir;
+        final Set<String> retained = new HashSet<String>();
+        synchronized (ExtrasStore.class) {
+            for (String handle : sRefCounts.keySet()) {
+                if (owns(handle)) {
+                    retained.add(handle);
+                }
+            }
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (!retained.contains(file.getPath())) {
+                        file.delete();
+                    }
+                }
+                dir.setLastModified(System.currentTimeMillis());
+            }
+        });
+    }
+
+    void deleteSession() {
+        synchronized (ExtrasStore.class) {
+            for (Iterator<String> it = sRefCounts.keySet().iterator(); it.hasNext(); ) {
+                if (owns(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        final File dir = mDir;
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                deleteDir(dir);
+            }
+        });
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
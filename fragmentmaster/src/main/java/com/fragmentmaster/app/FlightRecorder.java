@@ -0,0 +1,482 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Records FragmentMaster events into a fixed-size ring of binary records in
+ * a memory-mapped file, so the latest history survives a crash of the
+ * process. Install it by
+ * {@link FragmentMaster#setFlightRecorder(FlightRecorder)}, and turn a
+ * recorded file into text by {@link #decode(File)}.
+ * <p/>
+ * Each record takes 32 bytes. Fragment classes are recorded as hashes of
+ * their names, and the names are recorded once in NAME records, recorded
+ * again when the ring overwrites them.
+ */
+public class FlightRecorder extends FragmentMaster.SimpleFragmentLifecycleCallbacks {
+
+    private static final int MAGIC = 0x464d4652; // FMFR
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+
+    private static final int RECORD_SIZE = 32;
+
+    // Header layout.
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_SEQUENCE = 16;
+
+    // Record layout.
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_TYPE = 8;
+    private static final int RECORD_CLASS = 12;
+    private static final int RECORD_INDEX = 16;
+    private static final int RECORD_ARG = 20;
+    private static final int RECORD_VALUE = 24;
+
+    // NAME records put the name at RECORD_ARG.
+    private static final int NAME_CHUNK_SIZE = RECORD_SIZE - RECORD_ARG;
+    private static final int NAME_MAX_CHUNKS = 4;
+
+    private static final int TYPE_SESSION = 0;
+    private static final int TYPE_NAME = 1;
+    private static final int TYPE_START = 2;
+    private static final int TYPE_FINISH = 3;
+    private static final int TYPE_PRIMARY = 4;
+    private static final int TYPE_LIFECYCLE = 5;
+    private static final int TYPE_TRANSITION_BEGIN = 6;
+    private static final int TYPE_TRANSITION_END = 7;
+    private static final int TYPE_ENTER_ANIMATION = 8;
+
+    private static final String[] TYPE_NAMES = {
+            "SESSION", "NAME", "START", "FINISH", "PRIMARY", "LIFECYCLE",
+            "TRANSITION_BEGIN", "TRANSITION_END", "ENTER_ANIMATION"
+    };
+
+    private static final int ATTACHED = 0;
+    private static final int CREATED = 1;
+    private static final int VIEW_CREATED = 2;
+    private static final int STARTED = 3;
+    private static final int RESUMED = 4;
+    private static final int ACTIVATED = 5;
+    private static final int DEACTIVATED = 6;
+    private static final int PAUSED = 7;
+    private static final int STOPPED = 8;
+    private static final int SAVE_INSTANCE_STATE = 9;
+    private static final int DESTROYED = 10;
+    private static final int DETACHED = 11;
+
+    private static final String[] LIFECYCLE_NAMES = {
+            "attached", "created", "viewCreated", "started", "resumed",
+            "activated", "deactivated", "paused", "stopped",
+            "saveInstanceState", "destroyed", "detached"
+    };
+
+    // Open recorders by canonical path, so a file is only written by one.
+    private static final HashMap<String, FlightRecorder> sRecorders =
+            new HashMap<String, FlightRecorder>();
+
+    private final File mFile;
+
+    private final String mPath;
+
+    // Null once closed.
+    private MappedByteBuffer mBuffer;
+
+    private final int mCapacity;
+
+    private long mSequence;
+
+    // Sequence of the latest NAME records of each class.
+    private final HashMap<Class<?>, long[]> mNameSequences = new HashMap<Class<?>, long[]>();
+
+    private FlightRecorder(File file, String path, MappedByteBuffer buffer, int capacity,
+                           long sequence) {
+        mFile = file;
+        mPath = path;
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mSequence = sequence;
+    }
+
+    /**
+     * Open the recorder file in the app's files dir, keeping the records in
+     * it if it was created with the same capacity. A file which is already
+     * open returns the same recorder, until it's closed.
+     *
+     * @param capacity The number of records the file holds.
+     */
+    public static FlightRecorder open(Context context, String fileName, int capacity)
+            throws IOException {
+        if (capacity <= NAME_MAX_CHUNKS) {
+            throw new IllegalArgumentException("Capacity is too small: " + capacity);
+        }
+        File file = new File(context.getFilesDir(), fileName);
+        String path = file.getCanonicalPath();
+        synchronized (sRecorders) {
+            FlightRecorder recorder = sRecorders.get(path);
+            if (recorder == null) {
+                recorder = map(file, path, capacity);
+                sRecorders.put(path, recorder);
+            } else if (recorder.mCapacity != capacity) {
+                throw new IllegalStateException(fileName + " is already open with capacity "
+                        + recorder.mCapacity);
+            }
+            return recorder;
+        }
+    }
+
+    private static FlightRecorder map(File file, String path, int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+
+        long sequence;
+        if (buffer.getInt(HEADER_MAGIC) == MAGIC
+                && buffer.getInt(HEADER_VERSION) == VERSION
+                && buffer.getInt(HEADER_RECORD_SIZE) == RECORD_SIZE
+                && buffer.getInt(HEADER_CAPACITY) == capacity) {
+            sequence = buffer.getLong(HEADER_SEQUENCE);
+        } else {
+            sequence = 0;
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+            buffer.putLong(HEADER_SEQUENCE, sequence);
+        }
+        FlightRecorder recorder = new FlightRecorder(file, path, buffer, capacity, sequence);
+        recorder.write(TYPE_SESSION, 0, 0, Process.myPid(), System.currentTimeMillis());
+        return recorder;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Flush the records to the file and unmap it. Nothing is recorded after
+     * the recorder is closed, the next {@link #open(Context, String, int)}
+     * of the file maps it again.
+     */
+    public void close() {
+        synchronized (sRecorders) {
+            if (sRecorders.get(mPath) == this) {
+                sRecorders.remove(mPath);
+            }
+        }
+        synchronized (this) {
+            if (mBuffer != null) {
+                mBuffer.force();
+                // The mapping is released when the buffer is collected.
+                mBuffer = null;
+            }
+        }
+    }
+
+    void recordStart(IMasterFragment fragment, int index, int requestCode) {
+        record(TYPE_START, fragment, index, requestCode, 0);
+    }
+
+    void recordPrimary(IMasterFragment fragment, int index) {
+        record(TYPE_PRIMARY, fragment, index, 0, 0);
+    }
+
+    /**
+     * @param position The position of the lower page of the transition.
+     * @param enter    Whether it's entering, or exiting.
+     */
+    void recordTransitionBegin(int position, boolean enter) {
+        record(TYPE_TRANSITION_BEGIN, null, position, enter ? 1 : 0, 0);
+    }
+
+    void recordTransitionEnd(int position, long durationMillis) {
+        record(TYPE_TRANSITION_END, null, position, 0, durationMillis);
+    }
+
+    @Override
+    public void onFragmentFinished(IMasterFragment fragment, int index) {
+        record(TYPE_FINISH, fragment, index, 0, 0);
+    }
+
+    @Override
+    public void onFragmentEnterAnimationStarted(IMasterFragment fragment, long waitMillis) {
+        record(TYPE_ENTER_ANIMATION, fragment, -1, 0, waitMillis);
+    }
+
+    @Override
+    public void onFragmentAttached(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, ATTACHED, 0);
+    }
+
+    @Override
+    public void onFragmentCreated(IMasterFragment fragment, Bundle savedInstanceState) {
+        record(TYPE_LIFECYCLE, fragment, -1, CREATED, savedInstanceState != null ? 1 : 0);
+    }
+
+    @Override
+    public void onFragmentViewCreated(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, VIEW_CREATED, 0);
+    }
+
+    @Override
+    public void onFragmentStarted(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, STARTED, 0);
+    }
+
+    @Override
+    public void onFragmentResumed(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, RESUMED, 0);
+    }
+
+    @Override
+    public void onFragmentActivated(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, ACTIVATED, 0);
+    }
+
+    @Override
+    public void onFragmentDeactivated(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, DEACTIVATED, 0);
+    }
+
+    @Override
+    public void onFragmentPaused(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, PAUSED, 0);
+    }
+
+    @Override
+    public void onFragmentStopped(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, STOPPED, 0);
+    }
+
+    @Override
+    public void onFragmentSaveInstanceState(IMasterFragment fragment, Bundle outState) {
+        record(TYPE_LIFECYCLE, fragment, -1, SAVE_INSTANCE_STATE, 0);
+    }
+
+    @Override
+    public void onFragmentDestroyed(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, DESTROYED, 0);
+    }
+
+    @Override
+    public void onFragmentDetached(IMasterFragment fragment) {
+        record(TYPE_LIFECYCLE, fragment, -1, DETACHED, 0);
+    }
+
+    private synchronized void record(int type, IMasterFragment fragment, int index,
+                                     int arg, long value) {
+        if (mBuffer == null) {
+            return;
+        }
+        int classHash = fragment != null ? recordName(fragment.getClass()) : 0;
+        write(type, classHash, index, arg, value);
+    }
+
+    /**
+     * Record the name of the class, unless its NAME records are still in the
+     * ring.
+     */
+    private int recordName(Class<?> clazz) {
+        String name = clazz.getName();
+        int hash = name.hashCode();
+        long[] sequence = mNameSequences.get(clazz);
+        if (sequence != null && sequence[0] + mCapacity > mSequence + NAME_MAX_CHUNKS) {
+            return hash;
+        }
+        if (sequence == null) {
+            sequence = new long[1];
+            mNameSequences.put(clazz, sequence);
+        }
+        sequence[0] = mSequence;
+
+        // Keep the tail of long names.
+        int maxLength = NAME_CHUNK_SIZE * NAME_MAX_CHUNKS;
+        if (name.length() > maxLength) {
+            name = name.substring(name.length() - maxLength);
+        }
+        int chunks = (name.length() + NAME_CHUNK_SIZE - 1) / NAME_CHUNK_SIZE;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int offset = writeOffset();
+            mBuffer.putLong(offset + RECORD_TIME, System.nanoTime());
+            mBuffer.putInt(offset + RECORD_TYPE, TYPE_NAME | chunk << 8 | chunks << 16);
+            mBuffer.putInt(offset + RECORD_CLASS, hash);
+            mBuffer.putInt(offset + RECORD_INDEX, 0);
+            for (int i = 0; i < NAME_CHUNK_SIZE; i++) {
+                int c = chunk * NAME_CHUNK_SIZE + i;
+                mBuffer.put(offset + RECORD_ARG + i,
+                        c < name.length() ? (byte) name.charAt(c) : 0);
+            }
+            commit();
+        }
+        return hash;
+    }
+
+    private void write(int type, int classHash, int index, int arg, long value) {
+        int offset = writeOffset();
+        mBuffer.putLong(offset + RECORD_TIME, System.nanoTime());
+        mBuffer.putInt(offset + RECORD_TYPE, type);
+        mBuffer.putInt(offset + RECORD_CLASS, classHash);
+        mBuffer.putInt(offset + RECORD_INDEX, index);
+        mBuffer.putInt(offset + RECORD_ARG, arg);
+        mBuffer.putLong(offset + RECORD_VALUE, value);
+        commit();
+    }
+
+    private int writeOffset() {
+        return HEADER_SIZE + (int) (mSequence % mCapacity) * RECORD_SIZE;
+    }
+
+    // The record becomes visible to the decoder when the sequence is stored.
+    private void commit() {
+        mSequence++;
+        mBuffer.putLong(HEADER_SEQUENCE, mSequence);
+    }
+
+    /**
+     * Decode a file written by FlightRecorder into text, one line per record,
+     * from the oldest to the latest.
+     */
+    public static String decode(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(HEADER_MAGIC) != MAGIC
+                || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IOException("Not a flight recorder file: " + file);
+        }
+        int capacity = buffer.getInt(HEADER_CAPACITY);
+        long sequence = buffer.getLong(HEADER_SEQUENCE);
+        if (buffer.capacity() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException("Truncated flight recorder file: " + file);
+        }
+        // The oldest record may be torn, it's overwritten before the
+        // sequence is stored.
+        long first = Math.max(0, sequence - capacity + 1);
+
+        // Collect class names first, NAME records may follow the records
+        // using them after the ring wraps.
+        SparseArray<char[]> names = new SparseArray<char[]>();
+        for (long s = first; s < sequence; s++) {
+            int offset = HEADER_SIZE + (int) (s % capacity) * RECORD_SIZE;
+            int type = buffer.getInt(offset + RECORD_TYPE);
+            if ((type & 0xff) != TYPE_NAME) {
+                continue;
+            }
+            int chunk = type >> 8 & 0xff;
+            int chunks = type >> 16 & 0xff;
+            int hash = buffer.getInt(offset + RECORD_CLASS);
+            char[] name = names.get(hash);
+            if (name == null || name.length != chunks * NAME_CHUNK_SIZE) {
+                name = new char[chunks * NAME_CHUNK_SIZE];
+                names.put(hash, name);
+            }
+            for (int i = 0; i < NAME_CHUNK_SIZE && chunk < chunks; i++) {
+                name[chunk * NAME_CHUNK_SIZE + i] = (char) buffer.get(offset + RECORD_ARG + i);
+            }
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        long sessionTime = -1;
+        for (long s = first; s < sequence; s++) {
+            int offset = HEADER_SIZE + (int) (s % capacity) * RECORD_SIZE;
+            long time = buffer.getLong(offset + RECORD_TIME);
+            int type = buffer.getInt(offset + RECORD_TYPE);
+            int hash = buffer.getInt(offset + RECORD_CLASS);
+            int index = buffer.getInt(offset + RECORD_INDEX);
+            int arg = buffer.getInt(offset + RECORD_ARG);
+            long value = buffer.getLong(offset + RECORD_VALUE);
+            if ((type & 0xff) == TYPE_NAME) {
+                continue;
+            }
+            if (type == TYPE_SESSION) {
+                sessionTime = time;
+                sb.append("--- session pid=").append(arg).append(' ')
+                        .append(dateFormat.format(new Date(value))).append('\n');
+                continue;
+            }
+            sb.append('#').append(s).append(' ');
+            if (sessionTime != -1) {
+                sb.append(String.format(Locale.US, "+%.3fms ", (time - sessionTime) / 1e6));
+            }
+            sb.append(type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "TYPE" + type);
+            if (hash != 0) {
+                char[] name = names.get(hash);
+                sb.append(' ').append(name != null
+                        ? new String(name).trim() : "class@" + Integer.toHexString(hash));
+            }
+            if (index >= 0) {
+                sb.append(" #").append(index);
+            }
+            switch (type) {
+                case TYPE_START:
+                    sb.append(" requestCode=").append(arg);
+                    break;
+                case TYPE_LIFECYCLE:
+                    sb.append(' ').append(arg >= 0 && arg < LIFECYCLE_NAMES.length
+                            ? LIFECYCLE_NAMES[arg] : "event" + arg);
+                    if (arg == CREATED && value != 0) {
+                        sb.append(" restored");
+                    }
+                    break;
+                case TYPE_TRANSITION_BEGIN:
+                    sb.append(arg != 0 ? " enter" : " exit");
+                    break;
+                case TYPE_TRANSITION_END:
+                    sb.append(" duration=").append(value).append("ms");
+                    break;
+                case TYPE_ENTER_ANIMATION:
+                    sb.append(" wait=").append(value).append("ms");
+                    break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
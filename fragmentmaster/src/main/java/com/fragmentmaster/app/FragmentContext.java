@@ -17,32 +17,109 @@
 package com.fragmentmaster.app;
 
 import android.app.Activity;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.ContextThemeWrapper;
 
 import com.fragmentmaster.R;
 import com.fragmentmaster.annotation.Configuration;
 
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
 public class FragmentContext extends ContextThemeWrapper {
 
+    private static final int UNRESOLVED = -2;
+
+    // Theme declared by the Configuration annotation of each fragment class,
+    // -1 if there's none.
+    private static final HashMap<Class<?>, Integer> sConfiguredThemes =
+            new HashMap<Class<?>, Integer>();
+
+    // Attributes resolved from the theme of each activity instance. Themes
+    // are mutable, and a recreated activity may have another one, so they're
+    // not shared between activities.
+    private static final WeakHashMap<Activity, ResolvedAttrs> sResolvedAttrs =
+            new WeakHashMap<Activity, ResolvedAttrs>();
+
+    private final int mThemeRes;
+
+    private final ResolvedAttrs mResolvedAttrs;
+
     FragmentContext(IMasterFragment fragment) {
-        super(fragment.getActivity(), getMasterFragmentThemeRes(fragment.getActivity(), fragment));
+        this(fragment.getActivity(),
+                getMasterFragmentThemeRes(fragment.getActivity(), fragment.getClass()));
     }
 
-    private static int getMasterFragmentThemeRes(Activity context, IMasterFragment fragment) {
-        int themeRes = -1;
-        Class clazz = fragment.getClass();
+    private FragmentContext(Activity activity, int themeRes) {
+        super(activity, themeRes);
+        mThemeRes = themeRes;
+        mResolvedAttrs = getResolvedAttrs(activity);
+    }
+
+    /**
+     * Resolve the theme and the window background of a fragment class ahead,
+     * so that attaching the fragment later only hits the caches.
+     */
+    static void preload(Activity activity, Class<?> clazz) {
+        new FragmentContext(activity, getMasterFragmentThemeRes(activity, clazz))
+                .getWindowBackgroundRes();
+    }
+
+    /**
+     * Returns the resource id of the window background of this context's
+     * theme, which is used as the background of the fragment's view.
+     */
+    int getWindowBackgroundRes() {
+        int background = mResolvedAttrs.mWindowBackgrounds.get(mThemeRes, UNRESOLVED);
+        if (background == UNRESOLVED) {
+            TypedValue outValue = new TypedValue();
+            getTheme().resolveAttribute(android.R.attr.windowBackground, outValue, true);
+            background = outValue.resourceId;
+            mResolvedAttrs.mWindowBackgrounds.put(mThemeRes, background);
+        }
+        return background;
+    }
+
+    private static ResolvedAttrs getResolvedAttrs(Activity activity) {
+        ResolvedAttrs attrs = sResolvedAttrs.get(activity);
+        if (attrs == null) {
+            attrs = new ResolvedAttrs();
+            sResolvedAttrs.put(activity, attrs);
+        }
+        return attrs;
+    }
+
+    private static int getMasterFragmentThemeRes(Activity context, Class<?> clazz) {
         // Get theme from Configuration annotation.
-        if (clazz.isAnnotationPresent(Configuration.class)) {
-            Configuration configuration = (Configuration) clazz.getAnnotation(Configuration.class);
-            themeRes = configuration.theme();
+        Integer configuredTheme = sConfiguredThemes.get(clazz);
+        if (configuredTheme == null) {
+            configuredTheme = -1;
+            if (clazz.isAnnotationPresent(Configuration.class)) {
+                Configuration configuration = clazz.getAnnotation(Configuration.class);
+                configuredTheme = configuration.theme();
+            }
+            sConfiguredThemes.put(clazz, configuredTheme);
         }
+        int themeRes = configuredTheme;
         // Get theme from Theme attrs.
         if (themeRes == -1) {
-            TypedValue outValue = new TypedValue();
-            context.getTheme().resolveAttribute(R.attr.masterFragmentTheme, outValue, true);
-            themeRes = outValue.resourceId;
+            ResolvedAttrs attrs = getResolvedAttrs(context);
+            if (attrs.mMasterFragmentTheme == UNRESOLVED) {
+                TypedValue outValue = new TypedValue();
+                context.getTheme().resolveAttribute(R.attr.masterFragmentTheme, outValue, true);
+                attrs.mMasterFragmentTheme = outValue.resourceId;
+            }
+            themeRes = attrs.mMasterFragmentTheme;
         }
         return themeRes;
     }
+
+    private static final class ResolvedAttrs {
+        // R.attr.masterFragmentTheme of the activity's theme.
+        int mMasterFragmentTheme = UNRESOLVED;
+
+        // android.R.attr.windowBackground keyed by fragment theme.
+        final SparseIntArray mWindowBackgrounds = new SparseIntArray();
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+/**
+ * Creates IMasterFragments started by FragmentMaster. Provide one through
+ * {@link FragmentMaster#setFragmentFactory(FragmentFactory)} to create
+ * fragments without reflection.
+ */
+public interface FragmentFactory {
+
+    /**
+     * Create a new instance of the fragment.
+     *
+     * @param className The class name of the fragment.
+     * @return The new fragment, or null to let FragmentMaster instantiate it
+     * reflectively.
+     */
+    public IMasterFragment newFragment(String className);
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+
+/**
+ * Instantiates IMasterFragments, through the {@link FragmentFactory} if there
+ * is one, or else through the cached empty constructor of the class.
+ */
+class FragmentInstantiator {
+
+    // Empty constructors of fragment classes, keyed by class name.
+    private static final HashMap<String, Constructor<?>> sConstructors =
+            new HashMap<String, Constructor<?>>();
+
+    private FragmentFactory mFactory = null;
+
+    void setFactory(FragmentFactory factory) {
+        mFactory = factory;
+    }
+
+    FragmentFactory getFactory() {
+        return mFactory;
+    }
+
+    IMasterFragment newFragment(Context context, String className) {
+        IMasterFragment fragment = null;
+        if (mFactory != null) {
+            fragment = mFactory.newFragment(className);
+        }
+        if (fragment == null) {
+            try {
+                fragment = (IMasterFragment) getConstructor(context, className).newInstance();
+            } catch (Exception e) {
+                throw new Fragment.InstantiationException("Unable to instantiate fragment "
+                        + className + ": make sure class name exists, is public, implements "
+                        + "IMasterFragment, and has an empty constructor that is public", e);
+            }
+        }
+        Bundle args = new Bundle();
+        args.setClassLoader(fragment.getClass().getClassLoader());
+        fragment.getFragment().setArguments(args);
+        return fragment;
+    }
+
+    private static Constructor<?> getConstructor(Context context, String className)
+            throws ClassNotFoundException, NoSuchMethodException {
+        synchronized (sConstructors) {
+            Constructor<?> constructor = sConstructors.get(className);
+            if (constructor == null) {
+                Class<?> clazz = context.getClassLoader().loadClass(className);
+                constructor = clazz.getConstructor();
+                sConstructors.put(className, constructor);
+            }
+            return constructor;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Watches destroyed fragments, and reports the ones which are still
+ * retained a while after they were destroyed. Register it by
+ * {@link FragmentMaster#registerFragmentLifecycleCallbacks(FragmentMaster.FragmentLifecycleCallbacks)}
+ * on the main thread.
+ * <p/>
+ * Fragments are held by weak references. After the retain timeout, the watcher
+ * runs the garbage collector on a background thread, and reports the
+ * fragments which are still reachable to the listener on the main thread.
+ * Each fragment is reported once. Fragments retaining their instances are not
+ * watched.
+ */
+public class FragmentLeakWatcher extends FragmentMaster.SimpleFragmentLifecycleCallbacks {
+
+    public static final long DEFAULT_RETAIN_TIMEOUT = 5000;
+
+    /**
+     * Receives retained fragments.
+     */
+    public interface Listener {
+        void onFragmentRetained(RetainedFragment retained);
+    }
+
+    // Runs the garbage collector and the checks, off the main thread.
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "FragmentLeakWatcher");
+                }
+            });
+
+    private final Listener mListener;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile long mRetainTimeout = DEFAULT_RETAIN_TIMEOUT;
+
+    // Finished fragments which have not been destroyed yet, and their
+    // positions and finish times.
+    private final WeakHashMap<IMasterFragment, long[]> mFinishedFragments =
+            new WeakHashMap<IMasterFragment, long[]>();
+
+    private final ReferenceQueue<IMasterFragment> mQueue = new ReferenceQueue<IMasterFragment>();
+
+    // Guarded by itself, it's checked on sExecutor.
+    private final HashSet<WatchedReference> mWatched = new HashSet<WatchedReference>();
+
+    // Whether a check is scheduled or running, on the main thread.
+    private boolean mCheckScheduled = false;
+
+    private final Runnable mScheduleCheck = new Runnable() {
+        @Override
+        public void run() {
+            sExecutor.execute(mCheck);
+        }
+    };
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<RetainedFragment> retained = check();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCheckScheduled = false;
+                    for (int i = 0; i < retained.size(); i++) {
+                        mListener.onFragmentRetained(retained.get(i));
+                    }
+                    if (hasPending()) {
+                        scheduleCheck();
+                    }
+                }
+            });
+        }
+    };
+
+    public FragmentLeakWatcher(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set how long a destroyed fragment may be retained before it's reported.
+     */
+    public void setRetainTimeout(long timeoutMillis) {
+        mRetainTimeout = timeoutMillis;
+    }
+
+    public long getRetainTimeout() {
+        return mRetainTimeout;
+    }
+
+    /**
+     * Returns the number of destroyed fragments which have not been collected
+     * yet, as far as the watcher knows.
+     */
+    public int getWatchedCount() {
+        synchronized (mWatched) {
+            removeCollected();
+            return mWatched.size();
+        }
+    }
+
+    @Override
+    public void onFragmentFinished(IMasterFragment fragment, int index) {
+        mFinishedFragments.put(fragment, new long[]{index, SystemClock.uptimeMillis()});
+    }
+
+    @Override
+    public void onFragmentDestroyed(IMasterFragment fragment) {
+        if (fragment.getFragment().getRetainInstance()) {
+            return;
+        }
+        long[] finished = mFinishedFragments.remove(fragment);
+        int index = finished != null ? (int) finished[0] : -1;
+        long time = finished != null ? finished[1] : SystemClock.uptimeMillis();
+        synchronized (mWatched) {
+            mWatched.add(new WatchedReference(fragment, mQueue, index, time));
+        }
+        scheduleCheck();
+    }
+
+    private void scheduleCheck() {
+        if (mCheckScheduled) {
+            return;
+        }
+        mCheckScheduled = true;
+        mHandler.postDelayed(mScheduleCheck, mRetainTimeout);
+    }
+
+    // Called on sExecutor.
+    private ArrayList<RetainedFragment> check() {
+        ArrayList<RetainedFragment> retained = new ArrayList<RetainedFragment>();
+        synchronized (mWatched) {
+            removeCollected();
+            if (mWatched.isEmpty()) {
+                return retained;
+            }
+        }
+        Runtime.getRuntime().gc();
+        System.runFinalization();
+
+        long now = SystemClock.uptimeMillis();
+        synchronized (mWatched) {
+            removeCollected();
+            for (WatchedReference ref : mWatched) {
+                if (!ref.mReported && now - ref.mTime >= mRetainTimeout) {
+                    ref.mReported = true;
+                    retained.add(new RetainedFragment(ref.mClassName, ref.mIndex, now - ref.mTime));
+                }
+            }
+        }
+        return retained;
+    }
+
+    private boolean hasPending() {
+        synchronized (mWatched) {
+            for (WatchedReference ref : mWatched) {
+                if (!ref.mReported && ref.get() != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Called with mWatched locked.
+    private void removeCollected() {
+        Reference<? extends IMasterFragment> ref;
+        while ((ref = mQueue.poll()) != null) {
+            mWatched.remove(ref);
+        }
+        // Reported fragments may be collected later.
+        for (Iterator<WatchedReference> it = mWatched.iterator(); it.hasNext(); ) {
+            if (it.next().get() == null) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class WatchedReference extends WeakReference<IMasterFragment> {
+
+        final String mClassName;
+
+        final int mIndex;
+
+        final long mTime;
+
+        boolean mReported = false;
+
+        WatchedReference(IMasterFragment fragment, ReferenceQueue<IMasterFragment> queue,
+                         int index, long time) {
+            super(fragment, queue);
+            mClassName = fragment.getClass().getName();
+            mIndex = index;
+            mTime = time;
+        }
+    }
+
+    /**
+     * A fragment which is still retained after it was destroyed.
+     */
+    public static final class RetainedFragment {
+
+        private final String mClassName;
+
+        private final int mIndex;
+
+        private final long mRetainedMillis;
+
+        RetainedFragment(String className, int index, long retainedMillis) {
+            mClassName = className;
+            mIndex = index;
+            mRetainedMillis = retainedMillis;
+        }
+
+        public String getClassName() {
+            return mClassName;
+        }
+
+        /**
+         * Returns the position of the fragment in the stack when it was
+         * finished, or -1 if it was destroyed without being finished.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Returns the time since the fragment was finished, or destroyed if it
+         * was not finished.
+         */
+        public long getRetainedMillis() {
+            return mRetainedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "RetainedFragment { " + mClassName + " #" + mIndex
+                    + ", retained " + mRetainedMillis + "ms }";
+        }
+    }
+}
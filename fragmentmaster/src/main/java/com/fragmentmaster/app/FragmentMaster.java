@@ -16,29 +16,46 @@
 
 package com.fragmentmaster.app;
 
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentManagerStateCompat;
+import android.support.v4.app.FragmentTransaction;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.fragmentmaster.BuildConfig;
 import com.fragmentmaster.animator.PageAnimator;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 public abstract class FragmentMaster {
 
     private static final String TAG = "FragmentMaster";
 
+    /**
+     * Keep the views of all pages attached.
+     *
+     * @see #setLiveWindow(int)
+     */
+    public static final int LIVE_WINDOW_UNLIMITED = -1;
+
     // The host activity.
     private final FragmentActivity mActivity;
 
@@ -58,19 +75,119 @@ public abstract class FragmentMaster {
 
     private PageAnimator mPageAnimator = null;
 
+    private int mLiveWindow = LIVE_WINDOW_UNLIMITED;
+
+    /**
+     * The default maximum time to defer an enter animation.
+     *
+     * @see #setEnterAnimationTimeout(long)
+     */
+    public static final long DEFAULT_ENTER_ANIMATION_TIMEOUT = 500;
+
+    private boolean mEnterAnimationDeferred = false;
+
+    private long mEnterAnimationTimeout = DEFAULT_ENTER_ANIMATION_TIMEOUT;
+
+    // Fragments which have postponed their enter animations.
+    private final HashSet<IMasterFragment> mPostponedFragments = new HashSet<IMasterFragment>();
+
     private IMasterFragment mPrimaryFragment = null;
 
+    private final FragmentInstantiator mFragmentInstantiator = new FragmentInstantiator();
+
+    private NavigationMetrics mNavigationMetrics = null;
+
+    private TransitionJankTracker mTransitionJankTracker = null;
+
+    private SavedStateBudget mSavedStateBudget = null;
+
+    private boolean mDebugHudEnabled = false;
+
+    private boolean mStateLoggingEnabled = false;
+
+    private boolean mTransitionStrictModeEnabled = false;
+
+    private FlightRecorder mFlightRecorder = null;
+
+    /**
+     * Keep all Request extras in the Requests.
+     *
+     * @see #setExtrasOverflowThreshold(int)
+     */
+    public static final int EXTRAS_OVERFLOW_DISABLED = 0;
+
+    private int mExtrasOverflowThreshold = EXTRAS_OVERFLOW_DISABLED;
+
+    // Opened when extras first overflow, or when a session is restored.
+    private ExtrasStore mExtrasStore = null;
+
+    /**
+     * Restore all fragments with the activity.
+     *
+     * @see #setLazyRestoreDepth(int)
+     */
+    public static final int LAZY_RESTORE_DISABLED = -1;
+
+    private int mLazyRestoreDepth = LAZY_RESTORE_DISABLED;
+
+    // Position of the primary fragment in the restored stack, or -1.
+    private int mRestoredPrimaryPosition = -1;
+
+    // Fragments instantiated ahead by prefetch(), keyed by class name.
+    private final HashMap<String, IMasterFragment> mPrefetchedFragments =
+            new HashMap<String, IMasterFragment>();
+
+    private final ArrayList<String> mPendingPrefetches = new ArrayList<String>();
+
+    private final MessageQueue.IdleHandler mPrefetchIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // Prefetch one fragment each time the main thread becomes idle.
+            if (!mPendingPrefetches.isEmpty()) {
+                performPrefetch(mPendingPrefetches.remove(0));
+            }
+            return !mPendingPrefetches.isEmpty();
+        }
+    };
+
     // Use to record Fragments started by FragmentMaster.
     private final Records mRecords = new Records();
 
     private final HashSet<IMasterFragment> mFinishPendingFragments = new HashSet<IMasterFragment>();
 
+    // Nesting depth of beginBatch() calls.
+    private int mBatchDepth = 0;
+
+    // Transaction collecting the fragments added/removed in current batch.
+    private FragmentTransaction mBatchTransaction = null;
+
+    private boolean mBatchAllowStateLoss = true;
+
+    // The last fragment started/finished in current batch.
+    private IMasterFragment mBatchStartedFragment = null;
+
+    private IMasterFragment mBatchFinishedFragment = null;
+
+    // Whether deferred fragments have been restored in current batch.
+    private boolean mBatchRestored = false;
+
+    // Whether a batch nested in the current one was discarded.
+    private boolean mBatchDiscarded = false;
+
     // Event dispatcher
     private final MasterEventDispatcher mEventDispatcher;
 
+    private static final FragmentLifecycleCallbacks[] NO_CALLBACKS =
+            new FragmentLifecycleCallbacks[0];
+
     private final ArrayList<FragmentLifecycleCallbacks> mFragmentLifecycleCallbackses =
             new ArrayList<FragmentLifecycleCallbacks>();
 
+    // Copy-on-write snapshot of mFragmentLifecycleCallbackses. Only rebuilt
+    // when callbacks are registered or unregistered, so dispatching lifecycle
+    // events takes no lock and allocates nothing.
+    private volatile FragmentLifecycleCallbacks[] mFragmentLifecycleCallbacksSnapshot = NO_CALLBACKS;
+
     FragmentMaster(FragmentActivity activity) {
         mActivity = activity;
         mFragmentManager = activity.getSupportFragmentManager();
@@ -97,32 +214,257 @@ public abstract class FragmentMaster {
                                              Request request, int requestCode) {
         ensureInstalled();
 
-        IMasterFragment fragment = newFragment(request.getClassName());
-        fragment.setRequest((Request) request.clone());
-        mFragmentManager.beginTransaction()
-                .add(getFragmentContainerId(), fragment.getFragment())
-                .commitAllowingStateLoss();
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.START_FRAGMENT);
+        try {
+            long requestTime = mNavigationMetrics != null ? NavigationMetrics.now() : 0;
+            IMasterFragment fragment = newFragment(request.getClassName());
+            Request copy = (Request) request.clone();
+            overflowExtras(copy);
+            fragment.setRequest(copy);
+            if (mNavigationMetrics != null) {
+                mNavigationMetrics.onFragmentInstantiated(fragment, requestTime);
+            }
+            beginBatch();
+            boolean completed = false;
+            try {
+                getBatchTransaction().add(getFragmentContainerId(), fragment.getFragment());
+                mRecords.add(fragment, target, requestCode);
+                if (mFlightRecorder != null) {
+                    mFlightRecorder.recordStart(fragment, mRecords.indexOf(fragment), requestCode);
+                }
+                fragment.setPrimary(false);
+                mBatchStartedFragment = fragment;
+                completed = true;
+            } finally {
+                endBatch(completed);
+            }
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
+    }
+
+    private void overflowExtras(Request request) {
+        String handle = request.getExtrasHandle();
+        if (handle != null) {
+            if (mExtrasStore != null && mExtrasStore.owns(handle)) {
+                return;
+            }
+            // The extras belong to another FragmentMaster, which may delete
+            // them at any time.
+            request.detachExtras();
+        }
+        if (mExtrasOverflowThreshold == EXTRAS_OVERFLOW_DISABLED) {
+            return;
+        }
+        Bundle extras = request.loadExtras();
+        if (extras == null || Parcels.sizeOf(extras) <= mExtrasOverflowThreshold) {
+            return;
+        }
+        handle = ensureExtrasStore().write(extras);
+        if (handle != null) {
+            request.setExtrasHandle(handle);
+        }
+    }
+
+    private ExtrasStore ensureExtrasStore() {
+        if (mExtrasStore == null) {
+            mExtrasStore = ExtrasStore.open(mActivity, null);
+            mRecords.setExtrasStore(mExtrasStore);
+        }
+        return mExtrasStore;
+    }
+
+    /**
+     * Start several fragments at once, each one on top of the previous one.
+     * All fragments are added in one FragmentTransaction.
+     *
+     * @param target   The fragment the first fragment is started from, may be
+     *                 null.
+     * @param requests The requests of the fragments to start, from bottom to top.
+     */
+    public final void startFragments(IMasterFragment target, List<Request> requests) {
+        ensureInstalled();
+        beginBatch();
+        boolean completed = false;
+        try {
+            IMasterFragment caller = target;
+            for (Request request : requests) {
+                startFragmentForResult(caller, request, -1);
+                caller = mBatchStartedFragment;
+            }
+            completed = true;
+        } finally {
+            endBatch(completed);
+        }
+    }
+
+    /**
+     * Begin a batch. Fragments started or finished until the matching
+     * {@link #commitBatch()} are added and removed in a single
+     * FragmentTransaction, and the pages are only updated once. Batches can
+     * be nested, only the outermost one is committed.
+     * <p/>
+     * Always close the batch in a finally block, by {@link #commitBatch()}
+     * when the batch is complete, or {@link #discardBatch()} when it's left by
+     * an exception. Otherwise the batch stays open and later navigations are
+     * never committed.
+     */
+    public final void beginBatch() {
+        ensureInstalled();
+        mBatchDepth++;
+    }
+
+    /**
+     * Commit the batch begun by {@link #beginBatch()}. The outermost batch is
+     * not committed if a batch nested in it was discarded.
+     */
+    public final void commitBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("No batch to commit.");
+        }
+        if (--mBatchDepth > 0) {
+            return;
+        }
+        FragmentTransaction transaction = mBatchTransaction;
+        boolean allowStateLoss = mBatchAllowStateLoss;
+        IMasterFragment startedFragment = mBatchStartedFragment;
+        IMasterFragment finishedFragment = mBatchFinishedFragment;
+        boolean restored = mBatchRestored;
+        boolean discarded = mBatchDiscarded;
+        resetBatch();
+        if (transaction == null || discarded) {
+            return;
+        }
+
+        if (allowStateLoss) {
+            transaction.commitAllowingStateLoss();
+        } else {
+            transaction.commit();
+        }
         mFragmentManager.executePendingTransactions();
-        mRecords.add(fragment, target, requestCode);
-        fragment.setPrimary(false);
-        setUpAnimator(fragment);
-        onFragmentStarted(fragment);
+        if (mNavigationMetrics != null) {
+            mNavigationMetrics.onCommitted(this);
+        }
+        // A batch may restore, finish and start fragments at once.
+        if (restored) {
+            onDeferredFragmentsRestored();
+        }
+        if (finishedFragment != null) {
+            onFragmentFinished(finishedFragment);
+        }
+        if (startedFragment != null) {
+            setUpAnimator(startedFragment);
+            onFragmentStarted(startedFragment);
+        }
+    }
+
+    /**
+     * Close the batch begun by {@link #beginBatch()} without committing it,
+     * when it's left by an exception, so a half-built transaction is never
+     * committed. The batches it's nested in are discarded too.
+     */
+    public final void discardBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("No batch to discard.");
+        }
+        mBatchDiscarded = true;
+        if (--mBatchDepth > 0) {
+            return;
+        }
+        resetBatch();
+    }
+
+    // Commit the batch if the code in it completed, or discard it.
+    final void endBatch(boolean completed) {
+        if (completed) {
+            commitBatch();
+        } else {
+            discardBatch();
+        }
+    }
+
+    private void resetBatch() {
+        mBatchTransaction = null;
+        mBatchAllowStateLoss = true;
+        mBatchStartedFragment = null;
+        mBatchFinishedFragment = null;
+        mBatchRestored = false;
+        mBatchDiscarded = false;
+    }
+
+    private FragmentTransaction getBatchTransaction() {
+        if (mBatchTransaction == null) {
+            mBatchTransaction = mFragmentManager.beginTransaction();
+        }
+        return mBatchTransaction;
     }
 
     protected void setUpAnimator(IMasterFragment fragment) {
         this.setPageAnimator(fragment != null ? fragment.onCreatePageAnimator() : null);
     }
 
+    /**
+     * Called after fragments have been started. When several fragments are
+     * started in a batch, it's only called once with the last one.
+     */
     protected abstract void onFragmentStarted(IMasterFragment fragment);
 
     private IMasterFragment newFragment(String className) {
+        IMasterFragment fragment = mPrefetchedFragments.remove(className);
+        if (fragment != null) {
+            return fragment;
+        }
+        return mFragmentInstantiator.newFragment(getActivity(), className);
+    }
+
+    /**
+     * Prepare the fragment of the request ahead, when the main thread is idle.
+     * The fragment is instantiated and its theme is resolved, so the next
+     * start of the same fragment class only has to attach it.
+     * <p/>
+     * Must be called on the main thread.
+     *
+     * @param request The request which will be used to start the fragment.
+     */
+    public void prefetch(Request request) {
+        String className = request.getClassName();
+        if (className == null || mPrefetchedFragments.containsKey(className)
+                || mPendingPrefetches.contains(className)) {
+            return;
+        }
+        if (mPendingPrefetches.isEmpty()) {
+            Looper.myQueue().addIdleHandler(mPrefetchIdleHandler);
+        }
+        mPendingPrefetches.add(className);
+    }
+
+    private void performPrefetch(String className) {
+        if (mActivity.isFinishing() || mPrefetchedFragments.containsKey(className)) {
+            return;
+        }
+        IMasterFragment fragment;
         try {
-            return (IMasterFragment) Fragment.instantiate(getActivity(),
-                    className, new Bundle());
-        } catch (Exception e) {
-            throw new RuntimeException("No fragment found : { className="
-                    + className + " }");
+            fragment = mFragmentInstantiator.newFragment(mActivity, className);
+        } catch (Fragment.InstantiationException e) {
+            // It will be thrown again when the fragment is started.
+            Log.w(TAG, "Failed to prefetch fragment " + className, e);
+            return;
         }
+        FragmentContext.preload(mActivity, fragment.getClass());
+        mPrefetchedFragments.put(className, fragment);
+    }
+
+    /**
+     * Set the factory used to create started fragments. Fragments the
+     * factory doesn't create are instantiated through their empty
+     * constructors.
+     */
+    public void setFragmentFactory(FragmentFactory factory) {
+        mFragmentInstantiator.setFactory(factory);
+    }
+
+    public FragmentFactory getFragmentFactory() {
+        return mFragmentInstantiator.getFactory();
     }
 
     public final void finishFragment(IMasterFragment fragment, int resultCode,
@@ -132,9 +474,52 @@ public abstract class FragmentMaster {
         if (!isFinishPending(fragment)) {
             mFinishPendingFragments.add(fragment);
         }
+        if (mNavigationMetrics != null) {
+            mNavigationMetrics.onFinishFragment(fragment);
+        }
+        restoreDeferredTarget(fragment);
+        // Let there be a page to go back to.
+        restoreDeferredFragments(fragment);
         onFinishFragment(fragment, resultCode, data);
     }
 
+    /**
+     * Finish all fragments above the specific fragment at once. The finished
+     * fragments are removed in one FragmentTransaction, and their targets which
+     * are still in FragmentMaster receive {@link IMasterFragment#RESULT_CANCELED}.
+     *
+     * @param fragment The fragment to return to.
+     */
+    public final void finishFragmentsAbove(IMasterFragment fragment) {
+        ensureInstalled();
+        throwIfNotInFragmentMaster(fragment);
+        List<IMasterFragment> fragments = getFragments();
+        List<IMasterFragment> above = new ArrayList<IMasterFragment>(
+                fragments.subList(mRecords.indexOf(fragment) + 1, fragments.size()));
+        if (above.isEmpty()) {
+            return;
+        }
+        mFinishPendingFragments.addAll(above);
+        for (IMasterFragment f : above) {
+            restoreDeferredTarget(f);
+        }
+        if (mNavigationMetrics != null) {
+            for (IMasterFragment f : above) {
+                mNavigationMetrics.onFinishFragment(f);
+            }
+        }
+        onFinishFragmentsAbove(fragment, above);
+
+        for (IMasterFragment f : above) {
+            Fragment target = f.getTargetFragment();
+            if (target instanceof IMasterFragment
+                    && isInFragmentMaster((IMasterFragment) target)
+                    && !isFinishPending((IMasterFragment) target)) {
+                deliverFragmentResult(f, IMasterFragment.RESULT_CANCELED, null);
+            }
+        }
+    }
+
     /**
      * Check whether the specific fragment is in FragmentMaster.
      * <p/>
@@ -160,6 +545,14 @@ public abstract class FragmentMaster {
         return mFinishPendingFragments.contains(fragment);
     }
 
+    /**
+     * Returns the position of the fragment in FragmentMaster, or -1 if it is
+     * not in FragmentMaster.
+     */
+    int indexOf(IMasterFragment fragment) {
+        return mRecords.indexOf(fragment);
+    }
+
     private void throwIfNotInFragmentMaster(IMasterFragment fragment) {
         if (!isInFragmentMaster(fragment)) {
             throw new IllegalStateException("Fragment {" + fragment
@@ -173,18 +566,64 @@ public abstract class FragmentMaster {
         deliverFragmentResult(fragment, resultCode, data);
     }
 
+    /**
+     * Finish the fragments above the given one, from top to bottom.
+     *
+     * @param fragment  The fragment to return to.
+     * @param fragments The fragments to finish, from bottom to top. They have
+     *                  been marked as finish pending.
+     */
+    protected void onFinishFragmentsAbove(IMasterFragment fragment,
+                                          List<IMasterFragment> fragments) {
+        beginBatch();
+        boolean completed = false;
+        try {
+            for (int i = fragments.size() - 1; i >= 0; i--) {
+                doFinishFragment(fragments.get(i));
+            }
+            completed = true;
+        } finally {
+            endBatch(completed);
+        }
+    }
+
     protected final void doFinishFragment(IMasterFragment fragment) {
+        if (mRecords.indexOf(fragment) == 0 && mRecords.getDeferredCount() > 0) {
+            // Never leave the stack empty while there are deferred fragments.
+            beginBatch();
+            boolean completed = false;
+            try {
+                restoreDeferredFragment();
+                completed = true;
+            } finally {
+                endBatch(completed);
+            }
+        }
         if (mRecords.indexOf(fragment) == 0 && mSticky) {
             mActivity.finish();
             return;
         }
 
-        mFragmentManager.beginTransaction().remove(fragment.getFragment())
-                .commit();
-        mFragmentManager.executePendingTransactions();
-        mRecords.remove(fragment);
-        mFinishPendingFragments.remove(fragment);
-        onFragmentFinished(fragment);
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.FINISH_FRAGMENT);
+        try {
+            int index = mRecords.indexOf(fragment);
+            beginBatch();
+            boolean completed = false;
+            try {
+                getBatchTransaction().remove(fragment.getFragment());
+                mBatchAllowStateLoss = false;
+                mRecords.remove(fragment);
+                dispatchFragmentFinished(fragment, index);
+                mFinishPendingFragments.remove(fragment);
+                mPostponedFragments.remove(fragment);
+                mBatchFinishedFragment = fragment;
+                completed = true;
+            } finally {
+                endBatch(completed);
+            }
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
     }
 
     protected void deliverFragmentResult(IMasterFragment fragment,
@@ -192,6 +631,10 @@ public abstract class FragmentMaster {
         Fragment targetFragment = fragment.getTargetFragment();
         int requestCode = fragment.getTargetRequestCode();
         if (requestCode != -1 && targetFragment instanceof IMasterFragment) {
+            if (data != null && data.getExtrasHandle() != null) {
+                // The extras may be deleted with the finished fragment.
+                data.detachExtras();
+            }
             dispatchFragmentResult((IMasterFragment) targetFragment,
                     fragment.getTargetRequestCode(), resultCode, data);
         }
@@ -217,8 +660,19 @@ public abstract class FragmentMaster {
         }
     }
 
+    /**
+     * Called after fragments have been finished. When several fragments are
+     * finished in a batch, it's only called once with the last one.
+     */
     protected abstract void onFragmentFinished(IMasterFragment fragment);
 
+    /**
+     * Called after deferred fragments have been restored below the other
+     * fragments, when no fragment was started or finished in the same batch.
+     */
+    protected void onDeferredFragmentsRestored() {
+    }
+
     public IMasterFragment getPrimaryFragment() {
         return mPrimaryFragment;
     }
@@ -232,6 +686,9 @@ public abstract class FragmentMaster {
                 fragment.setPrimary(true);
             }
             mPrimaryFragment = fragment;
+            if (mFlightRecorder != null) {
+                mFlightRecorder.recordPrimary(fragment, mRecords.indexOf(fragment));
+            }
             // Only the primary fragment can receive events.
             mEventDispatcher.setInterceptor(fragment);
         }
@@ -241,6 +698,19 @@ public abstract class FragmentMaster {
         return mRecords.getFragments();
     }
 
+    /**
+     * Estimate memory usage of each page, from bottom to top. It walks the
+     * view hierarchies of the pages, so call it on the main thread.
+     */
+    public List<PageMemoryInfo> getPageMemoryInfo() {
+        List<IMasterFragment> fragments = getFragments();
+        List<PageMemoryInfo> infos = new ArrayList<PageMemoryInfo>(fragments.size());
+        for (int i = 0; i < fragments.size(); i++) {
+            infos.add(PageMemoryInfo.collect(i, fragments.get(i)));
+        }
+        return infos;
+    }
+
     protected void setPageAnimator(PageAnimator pageAnimator) {
         mPageAnimator = pageAnimator;
     }
@@ -253,6 +723,322 @@ public abstract class FragmentMaster {
         return mPageAnimator != null;
     }
 
+    /**
+     * Set how many pages below the primary one keep their views attached.
+     * Pages out of this window are detached: their views are destroyed and
+     * their states are saved, and they are rebuilt when they come back into
+     * the window.
+     *
+     * @param liveWindow The number of pages below the primary page whose views
+     *                   stay attached, must be at least 1. Or
+     *                   {@link #LIVE_WINDOW_UNLIMITED} to keep all pages
+     *                   attached, which is the default.
+     */
+    public final void setLiveWindow(int liveWindow) {
+        if (liveWindow != LIVE_WINDOW_UNLIMITED && liveWindow < 1) {
+            throw new IllegalArgumentException("Live window must be at least 1 : { liveWindow="
+                    + liveWindow + " }");
+        }
+        if (mLiveWindow != liveWindow) {
+            mLiveWindow = liveWindow;
+            if (isInstalled()) {
+                onLiveWindowChanged(liveWindow);
+            }
+        }
+    }
+
+    public int getLiveWindow() {
+        return mLiveWindow;
+    }
+
+    protected void onLiveWindowChanged(int liveWindow) {
+    }
+
+    /**
+     * Set whether to defer the enter animation of a started fragment until its
+     * page is about to be drawn for the first time, so that the animation
+     * doesn't compete with the page's first measure, layout and draw. A
+     * fragment can postpone it further by
+     * {@link IMasterFragment.EnterAnimationPostponable#postponeEnterAnimation()}.
+     *
+     * @see #setEnterAnimationTimeout(long)
+     */
+    public void setEnterAnimationDeferred(boolean deferred) {
+        mEnterAnimationDeferred = deferred;
+    }
+
+    public boolean isEnterAnimationDeferred() {
+        return mEnterAnimationDeferred;
+    }
+
+    /**
+     * Set the maximum time in milliseconds an enter animation can be deferred.
+     * The animation starts anyway when it's reached.
+     */
+    public void setEnterAnimationTimeout(long timeoutMillis) {
+        mEnterAnimationTimeout = timeoutMillis;
+    }
+
+    public long getEnterAnimationTimeout() {
+        return mEnterAnimationTimeout;
+    }
+
+    void postponeEnterAnimation(IMasterFragment fragment) {
+        mPostponedFragments.add(fragment);
+    }
+
+    void startPostponedEnterAnimation(IMasterFragment fragment) {
+        if (mPostponedFragments.remove(fragment)) {
+            onPostponedEnterAnimationStarted(fragment);
+        }
+    }
+
+    boolean isEnterAnimationPostponed(IMasterFragment fragment) {
+        return mPostponedFragments.contains(fragment);
+    }
+
+    /**
+     * Called when a fragment starts its postponed enter animation.
+     */
+    protected void onPostponedEnterAnimationStarted(IMasterFragment fragment) {
+    }
+
+    /**
+     * Set the NavigationMetrics which measures navigations of this
+     * FragmentMaster, or null to stop measuring.
+     */
+    public void setNavigationMetrics(NavigationMetrics metrics) {
+        mNavigationMetrics = metrics;
+    }
+
+    public NavigationMetrics getNavigationMetrics() {
+        return mNavigationMetrics;
+    }
+
+    /**
+     * Set the TransitionJankTracker which records frames of page
+     * transitions, or null to stop tracking.
+     */
+    public void setTransitionJankTracker(TransitionJankTracker tracker) {
+        if (mTransitionJankTracker != null) {
+            mTransitionJankTracker.disarm();
+        }
+        mTransitionJankTracker = tracker;
+    }
+
+    public TransitionJankTracker getTransitionJankTracker() {
+        return mTransitionJankTracker;
+    }
+
+    /**
+     * Set the SavedStateBudget applied when the activity saves its state, or
+     * null to save all state as is.
+     */
+    public void setSavedStateBudget(SavedStateBudget budget) {
+        mSavedStateBudget = budget;
+    }
+
+    public SavedStateBudget getSavedStateBudget() {
+        return mSavedStateBudget;
+    }
+
+    /**
+     * Show an overlay with the stack depth, live pages, view count and frame
+     * times over the pages. It only works in debuggable apps, on API 18 and
+     * above.
+     */
+    public final void setDebugHudEnabled(boolean enabled) {
+        if (!isDebuggable() || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2
+                || mDebugHudEnabled == enabled) {
+            return;
+        }
+        mDebugHudEnabled = enabled;
+        if (isInstalled()) {
+            onDebugHudEnabledChanged(enabled);
+        }
+    }
+
+    public boolean isDebugHudEnabled() {
+        return mDebugHudEnabled;
+    }
+
+    protected void onDebugHudEnabledChanged(boolean enabled) {
+    }
+
+    /**
+     * Log the size of the stack and of FragmentManager each time the state is
+     * saved, off by default.
+     */
+    public void setStateLoggingEnabled(boolean enabled) {
+        mStateLoggingEnabled = enabled;
+    }
+
+    public boolean isStateLoggingEnabled() {
+        return mStateLoggingEnabled;
+    }
+
+    /**
+     * Detect disk and network access on the main thread while a transition
+     * is running, by adding detections to the StrictMode policy of the main
+     * thread until the transition settles, with violations only logged. The
+     * policy of the app is restored then, unless the app set another one.
+     * It only works on API 9 and above.
+     */
+    public void setTransitionStrictModeEnabled(boolean enabled) {
+        mTransitionStrictModeEnabled = enabled
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD;
+    }
+
+    public boolean isTransitionStrictModeEnabled() {
+        return mTransitionStrictModeEnabled;
+    }
+
+    /**
+     * Set the FlightRecorder which records the events of this
+     * FragmentMaster, or null to stop recording.
+     */
+    public void setFlightRecorder(FlightRecorder recorder) {
+        if (mFlightRecorder != null) {
+            unregisterFragmentLifecycleCallbacks(mFlightRecorder);
+        }
+        mFlightRecorder = recorder;
+        if (recorder != null) {
+            registerFragmentLifecycleCallbacks(recorder);
+        }
+    }
+
+    public FlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    /**
+     * Write Request extras larger than the threshold to app-private files
+     * when fragments are started, so copies of the Requests and the saved
+     * state only carry small handles. Files are written in the background,
+     * the started fragment keeps its extras in memory. Restored fragments and
+     * copies read the extras back when they first use them. The files are
+     * deleted when the fragment is finished or the activity finishes.
+     * <p/>
+     * Extras with file descriptors or binders are always kept in the
+     * Request.
+     *
+     * @param thresholdBytes The parcelled size in bytes above which extras
+     *                       are written to files, or
+     *                       {@link #EXTRAS_OVERFLOW_DISABLED}, which is the
+     *                       default.
+     */
+    public void setExtrasOverflowThreshold(int thresholdBytes) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + thresholdBytes);
+        }
+        mExtrasOverflowThreshold = thresholdBytes;
+    }
+
+    public int getExtrasOverflowThreshold() {
+        return mExtrasOverflowThreshold;
+    }
+
+    /**
+     * Restore deep stacks lazily after the activity is recreated. Only the
+     * primary page and the given number of pages below it are restored with
+     * the activity. The fragments below them are kept as saved state, with
+     * their Requests still parcelled, and are restored one by one when
+     * navigation reaches them. Until then, they are not in
+     * {@link #getFragments()}.
+     * <p/>
+     * It takes effect when the activity saves its state. Fragments retaining
+     * their instances, and the fragments above them, are always restored
+     * with the activity.
+     *
+     * @param depth The number of pages below the primary page restored with
+     *              the activity, 0 or more. Or {@link #LAZY_RESTORE_DISABLED}
+     *              to restore all pages, which is the default.
+     */
+    public void setLazyRestoreDepth(int depth) {
+        if (depth != LAZY_RESTORE_DISABLED && depth < 0) {
+            throw new IllegalArgumentException("Depth must not be negative: " + depth);
+        }
+        mLazyRestoreDepth = depth;
+    }
+
+    public int getLazyRestoreDepth() {
+        return mLazyRestoreDepth;
+    }
+
+    /**
+     * Restore deferred fragments until there are enough pages below the
+     * fragment to navigate back to, at least one.
+     */
+    final void restoreDeferredFragments(IMasterFragment fragment) {
+        int index = mRecords.indexOf(fragment);
+        if (index == -1 || mRecords.getDeferredCount() == 0) {
+            return;
+        }
+        int depth = Math.max(1, mLazyRestoreDepth);
+        if (index >= depth) {
+            return;
+        }
+        beginBatch();
+        boolean completed = false;
+        try {
+            for (int i = index; i < depth && mRecords.getDeferredCount() > 0; i++) {
+                restoreDeferredFragment();
+            }
+            completed = true;
+        } finally {
+            endBatch(completed);
+        }
+    }
+
+    /**
+     * Restore the deferred fragments down to the target of the fragment, if
+     * its target is deferred, so it can receive the result.
+     */
+    private void restoreDeferredTarget(IMasterFragment fragment) {
+        int[] target = mRecords.getDeferredTarget(fragment);
+        if (target == null) {
+            return;
+        }
+        beginBatch();
+        boolean completed = false;
+        try {
+            while (mRecords.getDeferredCount() > target[0]) {
+                restoreDeferredFragment();
+            }
+            completed = true;
+        } finally {
+            endBatch(completed);
+        }
+    }
+
+    /**
+     * Restore the top deferred fragment below the other fragments, in the
+     * current batch.
+     */
+    private void restoreDeferredFragment() {
+        DeferredFragment deferred = mRecords.peekDeferred();
+        IMasterFragment fragment = newFragment(deferred.mClassName);
+        if (deferred.mArguments != null) {
+            deferred.mArguments.setClassLoader(fragment.getClass().getClassLoader());
+            fragment.getFragment().setArguments(deferred.mArguments);
+        }
+        fragment.getFragment().setInitialSavedState(deferred.mSavedState);
+        getBatchTransaction().add(getFragmentContainerId(), fragment.getFragment());
+        mRecords.addRestored(fragment);
+        fragment.setPrimary(false);
+        mBatchRestored = true;
+    }
+
+    /**
+     * Called when the enter animation of a started fragment has settled, or
+     * right after the fragment is shown if it's not animated.
+     */
+    final void notifyEnterSettled(IMasterFragment fragment) {
+        if (mNavigationMetrics != null && fragment != null) {
+            mNavigationMetrics.onSettled(fragment);
+        }
+    }
+
     public final void install(int containerResID, Request homeRequest,
                               boolean sticky) {
         if (isInstalled()) {
@@ -262,6 +1048,10 @@ public abstract class FragmentMaster {
             checkInstallProperties();
             performInstall(mContainer);
             mIsInstalled = true;
+            if (mExtrasStore != null) {
+                // Drop the extras of fragments which were not restored.
+                mExtrasStore.collectGarbage();
+            }
 
             if (homeRequest != null) {
                 applyHomeFragment(homeRequest, sticky);
@@ -301,18 +1091,149 @@ public abstract class FragmentMaster {
         return hasPageAnimator() && mIsSlideable;
     }
 
-    Parcelable saveAllState() {
+    /**
+     * @param activityState The saved state of the activity, which already
+     *                      contains the state of FragmentManager.
+     */
+    Parcelable saveAllState(Bundle activityState) {
         FragmentMasterState state = new FragmentMasterState();
-        state.mFragments = mRecords.save(mFragmentManager);
+        saveRecords(state, null);
         state.mIsSlideable = mIsSlideable;
         state.mHomeFragmentApplied = mHomeFragmentApplied;
+        if (mExtrasStore != null) {
+            // The saved handles must refer to complete files.
+            ExtrasStore.awaitWrites();
+            state.mExtrasSession = mExtrasStore.getSession();
+        }
+        if (mSavedStateBudget != null) {
+            mSavedStateBudget.apply(this, activityState, state);
+        }
+        if (mLazyRestoreDepth != LAZY_RESTORE_DISABLED) {
+            deferFragments(activityState, state);
+        }
 
         logState();
         return state;
     }
 
+    /**
+     * Save the stack into the state, leaving out the excluded fragments.
+     */
+    void saveRecords(FragmentMasterState state, Set<IMasterFragment> excluded) {
+        state.mDeferred = mRecords.getDeferred();
+        saveRecords(state, excluded, null);
+    }
+
+    /**
+     * @param deferred Positions of the fragments which are deferred in the
+     *                 state, they must be excluded too.
+     */
+    private void saveRecords(FragmentMasterState state, Set<IMasterFragment> excluded,
+                             IdentityHashMap<IMasterFragment, Integer> deferred) {
+        state.mFragments = mRecords.save(mFragmentManager, excluded);
+        state.mFlags = new int[state.mFragments.length];
+        state.mTargets = new int[state.mFragments.length];
+        state.mRequestCodes = new int[state.mFragments.length];
+        List<IMasterFragment> fragments = getFragments();
+        IMasterFragment primary = getPrimaryFragment();
+        state.mPrimaryPosition = -1;
+        int index = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            IMasterFragment f = fragments.get(i);
+            if (excluded == null || !excluded.contains(f)) {
+                if (f == primary) {
+                    state.mPrimaryPosition = index;
+                }
+                state.mFlags[index] = mFinishPendingFragments.contains(f)
+                        ? FragmentMasterState.FLAG_FINISH_PENDING : 0;
+                // Targets which are not deferred are kept by FragmentManager.
+                int[] target = deferredTargetOf(f, deferred);
+                state.mTargets[index] = target != null ? target[0] : -1;
+                state.mRequestCodes[index] = target != null ? target[1] : -1;
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Returns the link of the fragment to a deferred target, as
+     * {position, requestCode}, or null.
+     */
+    private int[] deferredTargetOf(IMasterFragment fragment,
+                                   IdentityHashMap<IMasterFragment, Integer> deferred) {
+        int[] target = mRecords.getDeferredTarget(fragment);
+        if (target == null && deferred != null) {
+            Fragment targetFragment = fragment.getTargetFragment();
+            Integer position = targetFragment instanceof IMasterFragment
+                    ? deferred.get(targetFragment) : null;
+            if (position != null) {
+                target = new int[]{position, fragment.getTargetRequestCode()};
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Move the saved state of the fragments deeper than the lazy restore depth
+     * out of the state of FragmentManager, so they are not restored with the
+     * activity.
+     */
+    private void deferFragments(Bundle activityState, FragmentMasterState state) {
+        Parcelable fms = FragmentManagerStateCompat.getFragmentManagerState(activityState);
+        int primary = mRecords.indexOf(mPrimaryFragment);
+        if (fms == null || primary - mLazyRestoreDepth <= 0) {
+            return;
+        }
+        List<IMasterFragment> fragments = getFragments();
+        ArrayList<DeferredFragment> deferredFragments = new ArrayList<DeferredFragment>();
+        for (DeferredFragment d : state.mDeferred) {
+            deferredFragments.add(d);
+        }
+        IdentityHashMap<IMasterFragment, Integer> deferred =
+                new IdentityHashMap<IMasterFragment, Integer>();
+        Set<IMasterFragment> excluded = new HashSet<IMasterFragment>();
+        boolean deferring = true;
+        for (int i = 0; i < fragments.size(); i++) {
+            IMasterFragment f = fragments.get(i);
+            int index = FragmentManagerStateCompat.getIndex(f.getFragment());
+            if (!FragmentManagerStateCompat.hasFragmentState(fms, index)) {
+                // Dropped by SavedStateBudget.
+                excluded.add(f);
+                continue;
+            }
+            // Deferred fragments stay at the bottom of the stack.
+            deferring = deferring && i < primary - mLazyRestoreDepth
+                    && !f.getFragment().getRetainInstance() && !isFinishPending(f);
+            if (!deferring) {
+                continue;
+            }
+            int[] target = deferredTargetOf(f, deferred);
+            Request request = f.getRequest();
+            deferred.put(f, deferredFragments.size());
+            deferredFragments.add(new DeferredFragment(
+                    FragmentManagerStateCompat.getClassName(fms, index),
+                    FragmentManagerStateCompat.getArguments(fms, index),
+                    FragmentManagerStateCompat.getSavedState(fms, index),
+                    target != null ? target[0] : -1,
+                    target != null ? target[1] : -1,
+                    request != null ? request.getExtrasHandle() : null));
+            FragmentManagerStateCompat.dropFragment(fms, index);
+            excluded.add(f);
+        }
+        if (deferred.isEmpty()) {
+            return;
+        }
+        state.mDeferred = deferredFragments.toArray(new DeferredFragment[deferredFragments.size()]);
+        saveRecords(state, excluded, deferred);
+    }
+
+    // The BuildConfig of the library is always a release one in apps.
+    private boolean isDebuggable() {
+        return (mActivity.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
     private void logState() {
-        if (!BuildConfig.DEBUG) {
+        if (!mStateLoggingEnabled) {
             return;
         }
         int fragmentsInManagerCount = 0;
@@ -330,26 +1251,183 @@ public abstract class FragmentMaster {
     }
 
     void restoreAllState(Parcelable state) {
-        if (state != null) {
-            FragmentMasterState fms = (FragmentMasterState) state;
-            mRecords.restore(mFragmentManager, fms.mFragments);
+        FragmentMasterState fms = (FragmentMasterState) state;
+        if (fms != null && fms.mVersion != FragmentMasterState.VERSION) {
+            Log.w(TAG, "Discarding state of FragmentMaster version " + fms.mVersion
+                    + ", starting with an empty stack");
+            removeRestoredFragments();
+            fms = null;
+        }
+        if (fms != null) {
+            if (fms.mExtrasSession != null) {
+                mExtrasStore = ExtrasStore.open(mActivity, fms.mExtrasSession);
+                mRecords.setExtrasStore(mExtrasStore);
+            }
+            IMasterFragment[] fragments = mRecords.restore(mFragmentManager,
+                    fms.mFragments, fms.mDeferred);
+            mFinishPendingFragments.clear();
+            for (int i = 0; i < fragments.length; i++) {
+                if (fragments[i] != null && fms.mTargets[i] != -1) {
+                    mRecords.setDeferredTarget(fragments[i], fms.mTargets[i],
+                            fms.mRequestCodes[i]);
+                }
+                if (fragments[i] != null
+                        && (fms.mFlags[i] & FragmentMasterState.FLAG_FINISH_PENDING) != 0) {
+                    mFinishPendingFragments.add(fragments[i]);
+                }
+            }
+            mRestoredPrimaryPosition = -1;
+            if (fms.mPrimaryPosition >= 0 && fragments[fms.mPrimaryPosition] != null) {
+                int position = 0;
+                for (int i = 0; i < fms.mPrimaryPosition; i++) {
+                    if (fragments[i] != null) {
+                        position++;
+                    }
+                }
+                mRestoredPrimaryPosition = position;
+            }
             setSlideable(fms.mIsSlideable);
             mHomeFragmentApplied = fms.mHomeFragmentApplied;
         }
     }
 
+    // Remove the fragments FragmentManager restored in the container, as the
+    // stack they belonged to is lost.
+    private void removeRestoredFragments() {
+        List<Fragment> fragments = mFragmentManager.getFragments();
+        if (fragments == null) {
+            return;
+        }
+        FragmentTransaction ft = null;
+        for (Fragment f : fragments) {
+            if (f instanceof IMasterFragment && f.getId() != 0
+                    && f.getId() == getFragmentContainerId()) {
+                if (ft == null) {
+                    ft = mFragmentManager.beginTransaction();
+                }
+                ft.remove(f);
+            }
+        }
+        if (ft != null) {
+            ft.commit();
+        }
+    }
+
+    /**
+     * Returns the position of the primary fragment in the restored stack, or
+     * -1 if no state was restored.
+     */
+    int getRestoredPrimaryPosition() {
+        return mRestoredPrimaryPosition;
+    }
+
+    void onActivityDestroyed(boolean finishing) {
+        // Prefetched fragments belong to the destroyed activity.
+        Looper.myQueue().removeIdleHandler(mPrefetchIdleHandler);
+        mPendingPrefetches.clear();
+        mPrefetchedFragments.clear();
+        mRecords.dropExtras();
+        if (finishing && mExtrasStore != null) {
+            mExtrasStore.deleteSession();
+        }
+    }
+
+    /**
+     * Print the state of FragmentMaster, used by the host activity's dump.
+     */
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        String innerPrefix = prefix + "    ";
+        writer.print(prefix);
+        writer.print("FragmentMaster installed=");
+        writer.print(mIsInstalled);
+        writer.print(" slideable=");
+        writer.print(mIsSlideable);
+        writer.print(" sticky=");
+        writer.print(mSticky);
+        writer.print(" liveWindow=");
+        writer.print(mLiveWindow);
+        writer.print(" deferred=");
+        writer.println(mRecords.getDeferredCount());
+
+        List<IMasterFragment> fragments = getFragments();
+        writer.print(prefix);
+        writer.print("Stack (");
+        writer.print(fragments.size());
+        writer.println("):");
+        for (int i = 0; i < fragments.size(); i++) {
+            IMasterFragment f = fragments.get(i);
+            writer.print(innerPrefix);
+            writer.print('#');
+            writer.print(i);
+            writer.print(": ");
+            writer.print(f.getFragment());
+            writer.print(' ');
+            writer.print(f.getRequest());
+            if (f == mPrimaryFragment) {
+                writer.print(" primary");
+            }
+            if (isFinishPending(f)) {
+                writer.print(" finish-pending");
+            }
+            if (isEnterAnimationPostponed(f)) {
+                writer.print(" enter-postponed");
+            }
+            writer.println();
+
+            Fragment target = f.getTargetFragment();
+            if (target != null) {
+                writer.print(innerPrefix);
+                writer.print("  target=#");
+                writer.print(target instanceof IMasterFragment
+                        ? mRecords.indexOf((IMasterFragment) target) : -1);
+                writer.print(' ');
+                writer.print(target);
+                writer.print(" requestCode=");
+                writer.println(f.getTargetRequestCode());
+            }
+
+            PageMemoryInfo info = PageMemoryInfo.collect(i, f);
+            writer.print(innerPrefix);
+            writer.print("  view=");
+            writer.print(!info.hasView() ? "none"
+                    : f.getView().getParent() != null ? "attached" : "detached");
+            writer.print(" views=");
+            writer.print(info.getViewCount());
+            writer.print(" drawableBytes=");
+            writer.print(info.getDrawableBytes());
+            writer.print(" savedStateBytes=");
+            writer.println(info.getSavedStateBytes());
+        }
+        dumpContainer(prefix, writer);
+    }
+
+    /**
+     * Print the state of the fragments' container.
+     */
+    protected void dumpContainer(String prefix, PrintWriter writer) {
+    }
+
     public void registerFragmentLifecycleCallbacks(FragmentLifecycleCallbacks callback) {
         synchronized (mFragmentLifecycleCallbackses) {
             mFragmentLifecycleCallbackses.add(callback);
+            updateFragmentLifecycleCallbacksSnapshot();
         }
     }
 
     public void unregisterFragmentLifecycleCallbacks(FragmentLifecycleCallbacks callback) {
         synchronized (mFragmentLifecycleCallbackses) {
             mFragmentLifecycleCallbackses.remove(callback);
+            updateFragmentLifecycleCallbacksSnapshot();
         }
     }
 
+    private void updateFragmentLifecycleCallbacksSnapshot() {
+        mFragmentLifecycleCallbacksSnapshot = mFragmentLifecycleCallbackses.isEmpty()
+                ? NO_CALLBACKS
+                : mFragmentLifecycleCallbackses.toArray(
+                new FragmentLifecycleCallbacks[mFragmentLifecycleCallbackses.size()]);
+    }
+
     // ------------------------------------------------------------------------
     // Dispatch events
     // ------------------------------------------------------------------------
@@ -379,121 +1457,119 @@ public abstract class FragmentMaster {
     // ------------------------------------------------------------------------
 
     void dispatchFragmentAttached(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentAttached(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentAttached(fragment);
         }
     }
 
     void dispatchFragmentCreated(IMasterFragment fragment, Bundle savedInstanceState) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentCreated(fragment, savedInstanceState);
-            }
+        if (mNavigationMetrics != null) {
+            mNavigationMetrics.onFragmentCreated(fragment);
+        }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentCreated(fragment, savedInstanceState);
         }
     }
 
     void dispatchFragmentViewCreated(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentViewCreated(fragment);
-            }
+        if (mNavigationMetrics != null) {
+            mNavigationMetrics.onFragmentViewCreated(fragment);
+        }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentViewCreated(fragment);
         }
     }
 
     void dispatchFragmentStarted(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentStarted(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentStarted(fragment);
         }
     }
 
     void dispatchFragmentResumed(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentResumed(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentResumed(fragment);
         }
     }
 
     void dispatchFragmentActivated(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentActivated(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentActivated(fragment);
         }
     }
 
     void dispatchFragmentDeactivated(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentDeactivated(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentDeactivated(fragment);
         }
     }
 
     void dispatchFragmentPaused(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentPaused(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentPaused(fragment);
         }
     }
 
     void dispatchFragmentStopped(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentStopped(fragment);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentStopped(fragment);
         }
     }
 
     void dispatchFragmentSaveInstanceState(IMasterFragment fragment, Bundle outState) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentSaveInstanceState(fragment, outState);
-            }
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentSaveInstanceState(fragment, outState);
         }
     }
 
     void dispatchFragmentDestroyed(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentDestroyed(fragment);
-            }
+        if (mNavigationMetrics != null) {
+            mNavigationMetrics.onFragmentDestroyed(this, fragment);
+        }
+        // Fragments destroyed with the activity keep their extras until it's
+        // destroyed, see onActivityDestroyed.
+        mRecords.onFragmentDestroyed(fragment);
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentDestroyed(fragment);
         }
     }
 
     void dispatchFragmentDetached(IMasterFragment fragment) {
-        Object[] callbacks = collectFragmentLifecycleCallbacks();
-        if (callbacks != null) {
-            for (Object callback : callbacks) {
-                ((FragmentLifecycleCallbacks) callback).onFragmentDetached(fragment);
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            callbacks[i].onFragmentDetached(fragment);
+        }
+    }
+
+    void dispatchFragmentEnterAnimationStarted(IMasterFragment fragment, long waitMillis) {
+        mPostponedFragments.remove(fragment);
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] instanceof EnterAnimationCallbacks) {
+                ((EnterAnimationCallbacks) callbacks[i])
+                        .onFragmentEnterAnimationStarted(fragment, waitMillis);
             }
         }
     }
 
-    private Object[] collectFragmentLifecycleCallbacks() {
-        Object[] callbacks = null;
-        synchronized (mFragmentLifecycleCallbackses) {
-            if (mFragmentLifecycleCallbackses.size() > 0) {
-                callbacks = mFragmentLifecycleCallbackses.toArray();
+    void dispatchFragmentFinished(IMasterFragment fragment, int index) {
+        FragmentLifecycleCallbacks[] callbacks = mFragmentLifecycleCallbacksSnapshot;
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] instanceof FinishCallbacks) {
+                ((FinishCallbacks) callbacks[i]).onFragmentFinished(fragment, index);
             }
         }
-        return callbacks;
     }
 
     public interface FragmentLifecycleCallbacks {
@@ -522,7 +1598,39 @@ public abstract class FragmentMaster {
         void onFragmentDetached(IMasterFragment fragment);
     }
 
-    public static class SimpleFragmentLifecycleCallbacks implements FragmentLifecycleCallbacks {
+    /**
+     * Implement it in {@link FragmentLifecycleCallbacks} to be notified of
+     * enter animations, {@link SimpleFragmentLifecycleCallbacks} implements
+     * it already.
+     */
+    public interface EnterAnimationCallbacks {
+        /**
+         * Called when the enter animation of a started fragment begins.
+         *
+         * @param waitMillis How long the animation has been deferred.
+         * @see FragmentMaster#setEnterAnimationDeferred(boolean)
+         */
+        void onFragmentEnterAnimationStarted(IMasterFragment fragment, long waitMillis);
+    }
+
+    /**
+     * Implement it in {@link FragmentLifecycleCallbacks} to be notified of
+     * finished fragments, {@link SimpleFragmentLifecycleCallbacks} implements
+     * it already.
+     */
+    public interface FinishCallbacks {
+        /**
+         * Called when a fragment is removed from FragmentMaster, before it's
+         * destroyed.
+         *
+         * @param index The position of the fragment in the stack when it was
+         *              removed, from bottom to top.
+         */
+        void onFragmentFinished(IMasterFragment fragment, int index);
+    }
+
+    public static class SimpleFragmentLifecycleCallbacks implements FragmentLifecycleCallbacks,
+            EnterAnimationCallbacks, FinishCallbacks {
         public void onFragmentAttached(IMasterFragment fragment) {
         }
 
@@ -558,24 +1666,80 @@ public abstract class FragmentMaster {
 
         public void onFragmentDetached(IMasterFragment fragment) {
         }
+
+        public void onFragmentEnterAnimationStarted(IMasterFragment fragment, long waitMillis) {
+        }
+
+        public void onFragmentFinished(IMasterFragment fragment, int index) {
+        }
     }
 }
 
 final class FragmentMasterState implements Parcelable {
 
-    Bundle mFragments;
+    // Bump it whenever the parcelled layout changes. States of other versions
+    // are skipped, and FragmentMaster starts with an empty stack:
+    // 1: initial layout.
+    static final int VERSION = 1;
+
+    static final int FLAG_FINISH_PENDING = 1;
+
+    // References of the fragments in FragmentManager, from bottom to top.
+    int[] mFragments;
+
+    // Flags of each fragment in mFragments.
+    int[] mFlags;
+
+    // Position of the target of each fragment in mFragments, if the target is
+    // in mDeferred, or -1. Other targets are kept by FragmentManager.
+    int[] mTargets;
+
+    int[] mRequestCodes;
+
+    // Fragments below mFragments which are restored lazily, from bottom to top.
+    DeferredFragment[] mDeferred = DeferredFragment.EMPTY;
 
     boolean mIsSlideable;
 
     boolean mHomeFragmentApplied;
 
+    // Session of ExtrasStore, or null if no extras overflowed.
+    String mExtrasSession;
+
+    // Position of the primary fragment in mFragments, or -1.
+    int mPrimaryPosition = -1;
+
+    // Version the state was written by. If it's not VERSION, the state is
+    // a marker, and the fields above are not read.
+    int mVersion = VERSION;
+
     public FragmentMasterState() {
     }
 
     private FragmentMasterState(Parcel in) {
-        mFragments = in.readBundle();
-        mIsSlideable = in.readInt() == 0;
-        mHomeFragmentApplied = in.readInt() == 0;
+        mVersion = in.readInt();
+        int size = in.readInt();
+        if (mVersion != VERSION) {
+            // Skipped as a whole, the enclosing Bundle reads on after it.
+            in.setDataPosition(in.dataPosition() + size);
+            return;
+        }
+        int count = in.readInt();
+        mFragments = new int[count];
+        mFlags = new int[count];
+        mTargets = new int[count];
+        mRequestCodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            mFragments[i] = in.readInt();
+            mFlags[i] = in.readInt();
+            mTargets[i] = in.readInt();
+            mRequestCodes[i] = in.readInt();
+        }
+        mDeferred = in.createTypedArray(DeferredFragment.CREATOR);
+        mIsSlideable = in.readInt() != 0;
+        mHomeFragmentApplied = in.readInt() != 0;
+        mExtrasSession = in.readString();
+        mPrimaryPosition = in.readInt();
     }
 
     @Override
@@ -585,9 +1749,27 @@ final class FragmentMasterState implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeBundle(mFragments);
-        dest.writeInt(mIsSlideable ? 0 : 1);
-        dest.writeInt(mHomeFragmentApplied ? 0 : 1);
+        dest.writeInt(VERSION);
+        // Size of the rest, so other versions can skip it.
+        int sizePosition = dest.dataPosition();
+        dest.writeInt(0);
+        int start = dest.dataPosition();
+        dest.writeInt(mFragments.length);
+        for (int i = 0; i < mFragments.length; i++) {
+            dest.writeInt(mFragments[i]);
+            dest.writeInt(mFlags[i]);
+            dest.writeInt(mTargets[i]);
+            dest.writeInt(mRequestCodes[i]);
+        }
+        dest.writeTypedArray(mDeferred, flags);
+        dest.writeInt(mIsSlideable ? 1 : 0);
+        dest.writeInt(mHomeFragmentApplied ? 1 : 0);
+        dest.writeString(mExtrasSession);
+        dest.writeInt(mPrimaryPosition);
+        int end = dest.dataPosition();
+        dest.setDataPosition(sizePosition);
+        dest.writeInt(end - start);
+        dest.setDataPosition(end);
     }
 
     public static final Parcelable.Creator<FragmentMasterState> CREATOR
@@ -16,16 +16,22 @@
 
 package com.fragmentmaster.app;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentTransaction;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v4.view.ViewPager.OnPageChangeListener;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 import com.fragmentmaster.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,6 +48,16 @@ public class FragmentMasterImpl extends FragmentMaster {
 
     private int mState = ViewPager.SCROLL_STATE_IDLE;
 
+    // The enter animation waiting for the started fragment to be ready.
+    private PendingEnter mPendingEnter = null;
+
+    private DebugHudView mDebugHud = null;
+
+    // Keeps mDebugHud over the pager in the container's overlay.
+    private Object mDebugHudOverlay = null;
+
+    private TransitionStrictMode mTransitionStrictMode = null;
+
     private OnPageChangeListener mOnPageChangeListener = new OnPageChangeListener() {
 
         @Override
@@ -59,6 +75,7 @@ public class FragmentMasterImpl extends FragmentMaster {
         @Override
         public void onPageScrollStateChanged(int state) {
             mState = state;
+            updateTransitionStrictMode();
             if (state == ViewPager.SCROLL_STATE_IDLE) {
                 mViewPager.post(new Runnable() {
                     @Override
@@ -87,11 +104,81 @@ public class FragmentMasterImpl extends FragmentMaster {
         mAdapter = new FragmentsAdapter();
         mViewPager = new FragmentMasterPager(this);
         mViewPager.setId(FRAGMENT_CONTAINER_ID);
-        mViewPager.setOffscreenPageLimit(Integer.MAX_VALUE);
+        onLiveWindowChanged(getLiveWindow());
         mViewPager.setAdapter(mAdapter);
         mViewPager.setOnPageChangeListener(mOnPageChangeListener);
 
         container.addView(mViewPager);
+        applyRestoredPrimaryPosition();
+        if (isDebugHudEnabled()) {
+            onDebugHudEnabledChanged(true);
+        }
+    }
+
+    /**
+     * Show the primary fragment of the restored state. The position saved by
+     * the pager counts fragments which have been deferred or dropped since.
+     */
+    void applyRestoredPrimaryPosition() {
+        int position = getRestoredPrimaryPosition();
+        if (position >= 0 && position != mViewPager.getCurrentItem()) {
+            mViewPager.setCurrentItem(position, false);
+        }
+    }
+
+    @Override
+    protected void onDebugHudEnabledChanged(boolean enabled) {
+        if (enabled && mDebugHud == null) {
+            mDebugHud = new DebugHudView(this, mViewPager);
+            mDebugHudOverlay = new DebugHudOverlay(mViewPager, mDebugHud);
+        } else if (!enabled && mDebugHud != null) {
+            ((DebugHudOverlay) mDebugHudOverlay).remove();
+            mDebugHudOverlay = null;
+            mDebugHud = null;
+        }
+    }
+
+    /**
+     * Draws the HUD in the overlay of the pager's container, over the pager,
+     * so the pager doesn't need a parent of its own whatever the container
+     * is.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static class DebugHudOverlay implements View.OnLayoutChangeListener {
+
+        private final View mPager;
+
+        private final View mHud;
+
+        DebugHudOverlay(View pager, View hud) {
+            mPager = pager;
+            mHud = hud;
+            ((ViewGroup) pager.getParent()).getOverlay().add(hud);
+            layoutHud();
+            pager.addOnLayoutChangeListener(this);
+        }
+
+        void remove() {
+            mPager.removeOnLayoutChangeListener(this);
+            ((ViewGroup) mPager.getParent()).getOverlay().remove(mHud);
+        }
+
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            layoutHud();
+        }
+
+        // Views in overlays are not laid out by their host.
+        private void layoutHud() {
+            mHud.layout(mPager.getLeft(), mPager.getTop(), mPager.getRight(), mPager.getBottom());
+        }
+    }
+
+    @Override
+    protected void onLiveWindowChanged(int liveWindow) {
+        mViewPager.setOffscreenPageLimit(
+                liveWindow == LIVE_WINDOW_UNLIMITED ? Integer.MAX_VALUE : liveWindow);
     }
 
     @Override
@@ -101,21 +188,65 @@ public class FragmentMasterImpl extends FragmentMaster {
 
     @Override
     protected void onFragmentStarted(IMasterFragment fragment) {
-        mAdapter.notifyDataSetChanged();
+        // Don't let a deferred enter animation wait for a newer one.
+        runPendingEnter();
+        notifyPagesChanged();
         int nextItem = mAdapter.getCount() - 1;
         // Perform "smooth scroll" if the page has a PageAnimator and more than
         // one item.
         boolean smoothScroll = hasPageAnimator() && nextItem > 0;
+        if (smoothScroll && isEnterAnimationDeferred() && fragment.getView() != null) {
+            // Scroll when the new page is ready. Until then, the pager is
+            // considered scrolling.
+            mPendingEnter = new PendingEnter(fragment);
+            setScrolling(true);
+            return;
+        }
         mViewPager.setCurrentItem(nextItem, smoothScroll);
         if (smoothScroll) {
-            mScrolling = true;
+            setScrolling(true);
+            dispatchFragmentEnterAnimationStarted(fragment, 0);
+        } else {
+            notifyEnterSettled(fragment);
         }
     }
 
+    @Override
+    protected void onPostponedEnterAnimationStarted(IMasterFragment fragment) {
+        if (mPendingEnter != null && mPendingEnter.mFragment == fragment
+                && mPendingEnter.mDrawn) {
+            runPendingEnter();
+        }
+    }
+
+    /**
+     * Start the deferred enter animation immediately, if there is one.
+     */
+    private void runPendingEnter() {
+        if (mPendingEnter == null) {
+            return;
+        }
+        PendingEnter enter = mPendingEnter;
+        mPendingEnter = null;
+        enter.cancel();
+
+        int item = indexOf(enter.mFragment);
+        if (item == -1 || item == mViewPager.getCurrentItem()) {
+            // Nothing to scroll.
+            setScrolling(false);
+            notifyEnterSettled(enter.mFragment);
+            return;
+        }
+        mViewPager.setCurrentItem(item, true);
+        dispatchFragmentEnterAnimationStarted(enter.mFragment,
+                SystemClock.uptimeMillis() - enter.mStartTime);
+    }
+
     @Override
     protected void onFinishFragment(final IMasterFragment fragment,
                                     final int resultCode, final Request data) {
-        final int index = getFragments().indexOf(fragment);
+        runPendingEnter();
+        final int index = indexOf(fragment);
         int curItem = mViewPager.getCurrentItem();
 
         if (hasPageAnimator() && curItem == index && index != 0) {
@@ -124,7 +255,7 @@ public class FragmentMasterImpl extends FragmentMaster {
             // When scrolling is stopped, real finish will be done by
             // cleanUp method.
             mViewPager.setCurrentItem(index - 1, true);
-            mScrolling = true;
+            setScrolling(true);
         }
         if (mScrolling) {
             // If pager is scrolling, do real finish when cleanUp.
@@ -134,13 +265,60 @@ public class FragmentMasterImpl extends FragmentMaster {
         super.onFinishFragment(fragment, resultCode, data);
     }
 
+    @Override
+    protected void onFinishFragmentsAbove(IMasterFragment fragment,
+                                          List<IMasterFragment> fragments) {
+        runPendingEnter();
+        if (mScrolling) {
+            // The fragments are finish pending, cleanUp will remove them.
+            return;
+        }
+        IMasterFragment primaryFragment = getPrimaryFragment();
+        if (hasPageAnimator() && fragments.contains(primaryFragment)) {
+            // Remove the other fragments at once, then scroll back from the
+            // primary fragment smoothly. When scrolling is stopped, the
+            // primary fragment will be removed by cleanUp method.
+            beginBatch();
+            boolean completed = false;
+            try {
+                for (int i = fragments.size() - 1; i >= 0; i--) {
+                    if (fragments.get(i) != primaryFragment) {
+                        doFinishFragment(fragments.get(i));
+                    }
+                }
+                completed = true;
+            } finally {
+                endBatch(completed);
+            }
+            mViewPager.setCurrentItem(indexOf(fragment), true);
+            setScrolling(true);
+            return;
+        }
+        super.onFinishFragmentsAbove(fragment, fragments);
+    }
+
     @Override
     protected void onFragmentFinished(IMasterFragment fragment) {
-        mAdapter.notifyDataSetChanged();
+        notifyPagesChanged();
+    }
+
+    @Override
+    protected void onDeferredFragmentsRestored() {
+        notifyPagesChanged();
+    }
+
+    private void notifyPagesChanged() {
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.NOTIFY_PAGES_CHANGED);
+        try {
+            mAdapter.notifyDataSetChanged();
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
     }
 
     private void onScrollIdle() {
-        mScrolling = false;
+        setScrolling(false);
+        notifyEnterSettled(getPrimaryFragment());
         // When scrolling stopped, do cleanup.
         mViewPager.removeCallbacks(mCleanUpRunnable);
         mViewPager.post(mCleanUpRunnable);
@@ -150,40 +328,157 @@ public class FragmentMasterImpl extends FragmentMaster {
         return mScrolling;
     }
 
+    @Override
+    protected void dumpContainer(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Pager scrolling=");
+        writer.print(mScrolling);
+        writer.print(" pendingEnter=");
+        writer.println(mPendingEnter != null);
+        if (mViewPager != null) {
+            mViewPager.dump(prefix + "    ", writer);
+        }
+    }
+
+    private void setScrolling(boolean scrolling) {
+        mScrolling = scrolling;
+        updateTransitionStrictMode();
+    }
+
+    /**
+     * Begin or end the transition StrictMode, a transition runs while the
+     * pager is scrolling or waiting to scroll.
+     */
+    private void updateTransitionStrictMode() {
+        boolean inTransition = mScrolling || mState != ViewPager.SCROLL_STATE_IDLE;
+        if (inTransition && mTransitionStrictMode == null && isTransitionStrictModeEnabled()) {
+            IMasterFragment primary = getPrimaryFragment();
+            List<IMasterFragment> fragments = getFragments();
+            IMasterFragment top = fragments.isEmpty() ? null : fragments.get(fragments.size() - 1);
+            mTransitionStrictMode = TransitionStrictMode.begin(primary,
+                    indexOf(top) > indexOf(primary) ? top : null);
+        } else if (!inTransition && mTransitionStrictMode != null) {
+            mTransitionStrictMode.end();
+            mTransitionStrictMode = null;
+        }
+    }
+
     /**
      * check whether there are any fragments above the primary fragment,
      * and finish them.
      */
     private void cleanUp() {
-        List<IMasterFragment> fragments = new ArrayList<IMasterFragment>(getFragments());
-        IMasterFragment primaryFragment = getPrimaryFragment();
-        // determine whether f is above primary fragment.
-        boolean abovePrimary = true;
-        for (int i = fragments.size() - 1; i >= 0; i--) {
-            IMasterFragment f = fragments.get(i);
-            if (f == primaryFragment) {
-                abovePrimary = false;
-            }
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.CLEAN_UP);
+        try {
+            List<IMasterFragment> fragments = new ArrayList<IMasterFragment>(getFragments());
+            IMasterFragment primaryFragment = getPrimaryFragment();
+            // Remove all of them in one transaction.
+            beginBatch();
+            boolean completed = false;
+            try {
+                // determine whether f is above primary fragment.
+                boolean abovePrimary = true;
+                for (int i = fragments.size() - 1; i >= 0; i--) {
+                    IMasterFragment f = fragments.get(i);
+                    if (f == primaryFragment) {
+                        abovePrimary = false;
+                    }
 
-            if (abovePrimary) {
-                // All fragments above primary fragment should be finished.
-                if (isInFragmentMaster(f)) {
-                    if (isFinishPending(f)) {
-                        doFinishFragment(f);
+                    if (abovePrimary) {
+                        // All fragments above primary fragment should be finished.
+                        if (isInFragmentMaster(f)) {
+                            if (isFinishPending(f)) {
+                                doFinishFragment(f);
+                            } else {
+                                f.finish();
+                            }
+                        }
                     } else {
-                        f.finish();
+                        if (isFinishPending(f) && !mScrolling) {
+                            doFinishFragment(f);
+                        }
                     }
                 }
-            } else {
-                if (isFinishPending(f) && !mScrolling) {
-                    doFinishFragment(f);
+                if (!mScrolling) {
+                    // Navigation may have reached the deferred fragments.
+                    restoreDeferredFragments(primaryFragment);
                 }
+                completed = true;
+            } finally {
+                endBatch(completed);
+            }
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
+    }
+
+    /**
+     * Waits for the first pre-draw of a started fragment's page, and for the
+     * fragment to start its postponed enter animation, if it has postponed it.
+     */
+    private class PendingEnter implements ViewTreeObserver.OnPreDrawListener, Runnable {
+
+        final IMasterFragment mFragment;
+
+        final long mStartTime = SystemClock.uptimeMillis();
+
+        private final View mView;
+
+        boolean mDrawn = false;
+
+        PendingEnter(IMasterFragment fragment) {
+            mFragment = fragment;
+            mView = fragment.getView();
+            mView.getViewTreeObserver().addOnPreDrawListener(this);
+            mViewPager.postDelayed(this, getEnterAnimationTimeout());
+            FragmentMasterTrace.beginAsyncSection(FragmentMasterTrace.ENTER_WAIT, 0);
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            removeOnPreDrawListener();
+            mDrawn = true;
+            if (!isEnterAnimationPostponed(mFragment)) {
+                // Let this frame be drawn, and start scrolling in the next one.
+                mViewPager.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPendingEnter == PendingEnter.this) {
+                            runPendingEnter();
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        // Timeout.
+        @Override
+        public void run() {
+            if (mPendingEnter == this) {
+                runPendingEnter();
+            }
+        }
+
+        void cancel() {
+            removeOnPreDrawListener();
+            mViewPager.removeCallbacks(this);
+            FragmentMasterTrace.endAsyncSection(FragmentMasterTrace.ENTER_WAIT, 0);
+        }
+
+        private void removeOnPreDrawListener() {
+            ViewTreeObserver observer = mView.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
             }
         }
     }
 
     private class FragmentsAdapter extends PagerAdapter {
 
+        // Attaches/detaches pages entering/leaving the live window.
+        private FragmentTransaction mCurTransaction = null;
+
         @Override
         public int getCount() {
             return getFragments().size();
@@ -191,17 +486,44 @@ public class FragmentMasterImpl extends FragmentMaster {
 
         @Override
         public int getItemPosition(Object object) {
-            int position = getFragments().indexOf(object);
+            int position = indexOf((IMasterFragment) object);
             return position == -1 ? POSITION_NONE : position;
         }
 
         @Override
         public Object instantiateItem(ViewGroup container, int position) {
-            return getFragments().get(position);
+            IMasterFragment fragment = getFragments().get(position);
+            if (fragment.getFragment().isDetached()) {
+                // The page comes back into the live window, rebuild its view.
+                ensureTransaction().attach(fragment.getFragment());
+            }
+            return fragment;
         }
 
         @Override
         public void destroyItem(ViewGroup container, int position, Object object) {
+            IMasterFragment fragment = (IMasterFragment) object;
+            // Finished fragments have been removed already. Only the pages
+            // leaving the live window need to be detached.
+            if (isInFragmentMaster(fragment) && !fragment.getFragment().isDetached()) {
+                ensureTransaction().detach(fragment.getFragment());
+            }
+        }
+
+        @Override
+        public void finishUpdate(ViewGroup container) {
+            if (mCurTransaction != null) {
+                mCurTransaction.commitAllowingStateLoss();
+                mCurTransaction = null;
+                getFragmentManager().executePendingTransactions();
+            }
+        }
+
+        private FragmentTransaction ensureTransaction() {
+            if (mCurTransaction == null) {
+                mCurTransaction = getFragmentManager().beginTransaction();
+            }
+            return mCurTransaction;
         }
 
         @Override
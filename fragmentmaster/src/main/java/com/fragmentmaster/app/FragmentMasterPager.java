@@ -18,14 +18,21 @@ package com.fragmentmaster.app;
 
 import android.annotation.SuppressLint;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.v4.view.ViewPager;
+import android.support.v4.view.ViewCompat;
 import android.support.v4.view.ViewPager.OnPageChangeListener;
 import android.support.v4.view.ViewPagerCompat;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.fragmentmaster.R;
+import com.fragmentmaster.animator.PageAnimator;
 import com.nineoldandroids.view.ViewHelper;
 
+import java.io.PrintWriter;
+import java.util.List;
+
 /**
  * Real container of fragments.
  */
@@ -41,6 +48,15 @@ class FragmentMasterPager extends ViewPagerCompat {
 
     private int mAnimationState = ANIMATION_NONE;
 
+    private int mScrollState = ViewPager.SCROLL_STATE_IDLE;
+
+    // Whether a transition has begun and not yet settled.
+    private boolean mInTransition = false;
+
+    private long mTransitionStartTime = 0;
+
+    private long mLastTransitionDuration = -1;
+
     // The position of primary item in the latest SCROLL_STATE_IDLE state.
     private int mLatestIdleItem = 0;
 
@@ -54,39 +70,153 @@ class FragmentMasterPager extends ViewPagerCompat {
     private ViewPager.PageTransformer mPageTransformer = new ViewPager.PageTransformer() {
         @Override
         public void transformPage(View page, float position) {
-            resetPage(page, position);
+            PageState state = getPageState(page);
             if (mFragmentMasterImpl.hasPageAnimator()) {
                 if (position < -1 || position > 1) {
-                    page.setVisibility(INVISIBLE);
+                    // Offscreen pages only need to be reset and hidden once.
+                    if (!state.mHidden || page.getVisibility() != INVISIBLE) {
+                        setPageLayer(page, state, false);
+                        resetPage(page, state);
+                        page.setVisibility(INVISIBLE);
+                        state.mHidden = true;
+                    }
                 } else {
+                    state.mHidden = false;
+                    // Only the foreground and background pages, which are
+                    // strictly inside (-1, 1), take part in the transition.
+                    setPageLayer(page, state, position > -1 && position < 1
+                            && shouldUseHardwareLayers());
                     page.setVisibility(VISIBLE);
+                    resetPage(page, state);
+                    FragmentMasterTrace.beginSection(FragmentMasterTrace.TRANSFORM_PAGE);
                     mFragmentMasterImpl.getPageAnimator().transformPage(page,
                             position, mAnimationState == ANIMATION_ENTER);
+                    FragmentMasterTrace.endSection();
+                    state.mDirty = collectDirtyProperties(page);
                 }
             } else {
+                state.mHidden = false;
+                setPageLayer(page, state, false);
+                resetPage(page, state);
                 page.setVisibility(VISIBLE);
             }
         }
 
-        private void resetPage(View page, float position) {
-            ViewHelper.setAlpha(page, 1);
-            ViewHelper.setTranslationX(page, 0);
-            ViewHelper.setTranslationY(page, 0);
-            ViewHelper.setScaleX(page, 1);
-            ViewHelper.setScaleY(page, 1);
-            ViewHelper.setRotation(page, 0);
-            ViewHelper.setRotationX(page, 0);
-            ViewHelper.setRotationY(page, 0);
-            ViewHelper.setPivotX(page, page.getWidth() / 2f);
-            ViewHelper.setPivotY(page, page.getHeight() / 2f);
+        /**
+         * Reset the properties touched by PageAnimator in the last frame.
+         */
+        private void resetPage(View page, PageState state) {
+            if (state.mWidth != page.getWidth() || state.mHeight != page.getHeight()) {
+                // Pivots depend on the size of page.
+                state.mWidth = page.getWidth();
+                state.mHeight = page.getHeight();
+                state.mDirty |= PageState.PIVOT;
+            }
+            final int dirty = state.mDirty;
+            if (dirty == 0) {
+                return;
+            }
+            if ((dirty & PageState.ALPHA) != 0) {
+                ViewHelper.setAlpha(page, 1);
+            }
+            if ((dirty & PageState.TRANSLATION) != 0) {
+                ViewHelper.setTranslationX(page, 0);
+                ViewHelper.setTranslationY(page, 0);
+            }
+            if ((dirty & PageState.SCALE) != 0) {
+                ViewHelper.setScaleX(page, 1);
+                ViewHelper.setScaleY(page, 1);
+            }
+            if ((dirty & PageState.ROTATION) != 0) {
+                ViewHelper.setRotation(page, 0);
+                ViewHelper.setRotationX(page, 0);
+                ViewHelper.setRotationY(page, 0);
+            }
+            if ((dirty & PageState.PIVOT) != 0) {
+                ViewHelper.setPivotX(page, page.getWidth() / 2f);
+                ViewHelper.setPivotY(page, page.getHeight() / 2f);
+            }
+            state.mDirty = 0;
+        }
+
+        /**
+         * Find out which properties have been moved away from their reset
+         * values by PageAnimator.
+         */
+        private int collectDirtyProperties(View page) {
+            int dirty = 0;
+            if (ViewHelper.getAlpha(page) != 1) {
+                dirty |= PageState.ALPHA;
+            }
+            if (ViewHelper.getTranslationX(page) != 0 || ViewHelper.getTranslationY(page) != 0) {
+                dirty |= PageState.TRANSLATION;
+            }
+            if (ViewHelper.getScaleX(page) != 1 || ViewHelper.getScaleY(page) != 1) {
+                dirty |= PageState.SCALE;
+            }
+            if (ViewHelper.getRotation(page) != 0 || ViewHelper.getRotationX(page) != 0
+                    || ViewHelper.getRotationY(page) != 0) {
+                dirty |= PageState.ROTATION;
+            }
+            if (ViewHelper.getPivotX(page) != page.getWidth() / 2f
+                    || ViewHelper.getPivotY(page) != page.getHeight() / 2f) {
+                dirty |= PageState.PIVOT;
+            }
+            return dirty;
         }
 
     };
 
+    private static PageState getPageState(View page) {
+        PageState state = (PageState) page.getTag(R.id.internal_page_state);
+        if (state == null) {
+            state = new PageState();
+            page.setTag(R.id.internal_page_state, state);
+        }
+        return state;
+    }
+
+    /**
+     * Whether the pages taking part in the current transition should be
+     * rendered into hardware layers.
+     */
+    private boolean shouldUseHardwareLayers() {
+        return mScrollState != ViewPager.SCROLL_STATE_IDLE
+                && (mAnimationState != ANIMATION_NONE
+                || mScrollState == ViewPager.SCROLL_STATE_DRAGGING)
+                && mFragmentMasterImpl.getPageAnimator().useHardwareLayers();
+    }
+
+    private static void setPageLayer(View page, PageState state, boolean layered) {
+        if (state.mLayered != layered) {
+            state.mLayered = layered;
+            ViewCompat.setLayerType(page, layered
+                    ? ViewCompat.LAYER_TYPE_HARDWARE
+                    : ViewCompat.LAYER_TYPE_NONE, null);
+        }
+    }
+
+    private void clearPageLayers() {
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            View child = getChildAt(i);
+            PageState state = (PageState) child.getTag(R.id.internal_page_state);
+            if (state != null) {
+                setPageLayer(child, state, false);
+            }
+        }
+    }
+
     // Internal listener
     private OnPageChangeListener mOnPageChangeListener = new OnPageChangeListener() {
         @Override
         public void onPageScrollStateChanged(int state) {
+            mScrollState = state;
+            if (state == ViewPager.SCROLL_STATE_IDLE) {
+                clearPageLayers();
+                endTransition();
+            }
+
             if (mWrappedOnPageChangeListener != null) {
                 mWrappedOnPageChangeListener.onPageScrollStateChanged(state);
             }
@@ -133,6 +263,26 @@ class FragmentMasterPager extends ViewPagerCompat {
         return mFragmentMasterImpl.isSlideable() && !mFragmentMasterImpl.isScrolling() && super.onInterceptTouchEvent(ev);
     }
 
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.MEASURE);
+        try {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        FragmentMasterTrace.beginSection(FragmentMasterTrace.LAYOUT);
+        try {
+            super.onLayout(changed, l, t, r, b);
+        } finally {
+            FragmentMasterTrace.endSection();
+        }
+    }
+
     @Override
     public void setOnPageChangeListener(OnPageChangeListener listener) {
         mWrappedOnPageChangeListener = listener;
@@ -147,12 +297,67 @@ class FragmentMasterPager extends ViewPagerCompat {
             // The ViewPager is performing entering.
             setAnimationState(ANIMATION_ENTER);
         }
+        if (mScrollState != ViewPager.SCROLL_STATE_IDLE && !mInTransition) {
+            beginTransition(position);
+        }
         super.onPageScrolled(position, offset, offsetPixels);
     }
 
+    /**
+     * Called on the first scrolled frame of the transition between the page
+     * at position and the one above it.
+     */
+    private void beginTransition(int position) {
+        mInTransition = true;
+        mTransitionStartTime = SystemClock.uptimeMillis();
+        FragmentMasterTrace.beginAsyncSection(FragmentMasterTrace.TRANSITION, 0);
+        FlightRecorder recorder = mFragmentMasterImpl.getFlightRecorder();
+        if (recorder != null) {
+            recorder.recordTransitionBegin(position, mAnimationState == ANIMATION_ENTER);
+        }
+        TransitionJankTracker tracker = mFragmentMasterImpl.getTransitionJankTracker();
+        if (tracker != null) {
+            PageAnimator animator = mFragmentMasterImpl.getPageAnimator();
+            List<IMasterFragment> fragments = mFragmentMasterImpl.getFragments();
+            tracker.arm(animator != null ? animator.getClass() : null,
+                    classAt(fragments, position + 1), classAt(fragments, position));
+        }
+    }
+
+    /**
+     * Returns the duration of the last settled transition in milliseconds,
+     * or -1 if there hasn't been one.
+     */
+    long getLastTransitionDuration() {
+        return mLastTransitionDuration;
+    }
+
+    private void endTransition() {
+        if (!mInTransition) {
+            return;
+        }
+        mInTransition = false;
+        mLastTransitionDuration = SystemClock.uptimeMillis() - mTransitionStartTime;
+        FragmentMasterTrace.endAsyncSection(FragmentMasterTrace.TRANSITION, 0);
+        FlightRecorder recorder = mFragmentMasterImpl.getFlightRecorder();
+        if (recorder != null) {
+            recorder.recordTransitionEnd(getCurrentItem(), mLastTransitionDuration);
+        }
+        TransitionJankTracker tracker = mFragmentMasterImpl.getTransitionJankTracker();
+        if (tracker != null) {
+            tracker.disarm();
+        }
+    }
+
+    private static Class<?> classAt(List<IMasterFragment> fragments, int position) {
+        return position >= 0 && position < fragments.size()
+                ? fragments.get(position).getClass() : null;
+    }
+
     @Override
     public void onRestoreInstanceState(Parcelable state) {
         super.onRestoreInstanceState(state);
+        mFragmentMasterImpl.applyRestoredPrimaryPosition();
         mLatestIdleItem = getCurrentItem();
     }
 
@@ -160,4 +365,47 @@ class FragmentMasterPager extends ViewPagerCompat {
         mAnimationState = state;
     }
 
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("currentItem=");
+        writer.print(getCurrentItem());
+        writer.print(" latestIdleItem=");
+        writer.print(mLatestIdleItem);
+        writer.print(" scrollState=");
+        writer.print(mScrollState == ViewPager.SCROLL_STATE_IDLE ? "idle"
+                : mScrollState == ViewPager.SCROLL_STATE_DRAGGING ? "dragging" : "settling");
+        writer.print(" animationState=");
+        writer.print(mAnimationState == ANIMATION_ENTER ? "enter"
+                : mAnimationState == ANIMATION_EXIT ? "exit" : "none");
+        writer.print(" pages=");
+        writer.print(getChildCount());
+        writer.print(" lastTransition=");
+        writer.print(mLastTransitionDuration);
+        writer.println("ms");
+    }
+
+    /**
+     * Transform state of a page, kept as a tag of the page's view.
+     */
+    private static final class PageState {
+        static final int ALPHA = 1;
+        static final int TRANSLATION = 1 << 1;
+        static final int SCALE = 1 << 2;
+        static final int ROTATION = 1 << 3;
+        static final int PIVOT = 1 << 4;
+        static final int ALL = ALPHA | TRANSLATION | SCALE | ROTATION | PIVOT;
+
+        // Properties which are not at their reset values.
+        int mDirty = ALL;
+
+        // Whether the page has been reset and hidden as an offscreen page.
+        boolean mHidden = false;
+
+        // Whether the page has been promoted to a hardware layer.
+        boolean mLayered = false;
+
+        int mWidth;
+
+        int mHeight;
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.support.v4.view.ViewPagerCompat;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Trace sections of FragmentMaster, shown in systrace and Perfetto.
+ * <p/>
+ * Tracing is off by default, and each section costs a static field check
+ * when it's off. Turn it on by {@link #setEnabled(boolean)} before
+ * installing FragmentMaster. It only works on API 18 and above, async
+ * sections are emitted where the platform supports them.
+ */
+public final class FragmentMasterTrace {
+
+    private static final String TAG = "FragmentMasterTrace";
+
+    static final String START_FRAGMENT = "FM:startFragment";
+    static final String FINISH_FRAGMENT = "FM:finishFragment";
+    static final String CLEAN_UP = "FM:cleanUp";
+    static final String NOTIFY_PAGES_CHANGED = "FM:notifyPagesChanged";
+    static final String MEASURE = "FM:measure";
+    static final String LAYOUT = "FM:layout";
+    static final String TRANSFORM_PAGE = "FM:transformPage";
+
+    // Async sections, spanning multiple frames.
+    static final String TRANSITION = "FM:transition";
+    static final String ENTER_WAIT = "FM:enterWait";
+
+    private static boolean sEnabled = false;
+
+    private FragmentMasterTrace() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        // Pages are populated by ViewPagerCompat, which traces them itself.
+        ViewPagerCompat.setTraceEnabled(enabled);
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void beginSection(String sectionName) {
+        if (sEnabled) {
+            TraceJellybeanMR2.beginSection(sectionName);
+        }
+    }
+
+    static void endSection() {
+        if (sEnabled) {
+            TraceJellybeanMR2.endSection();
+        }
+    }
+
+    static void beginAsyncSection(String sectionName, int cookie) {
+        if (sEnabled) {
+            TraceJellybeanMR2.asyncTrace(true, sectionName, cookie);
+        }
+    }
+
+    static void endAsyncSection(String sectionName, int cookie) {
+        if (sEnabled) {
+            TraceJellybeanMR2.asyncTrace(false, sectionName, cookie);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static class TraceJellybeanMR2 {
+
+        // Build.VERSION_CODES.Q, Trace.beginAsyncSection and endAsyncSection
+        // are public from it on.
+        private static final int Q = 29;
+
+        // Trace.TRACE_TAG_APP, hidden.
+        private static final long TRACE_TAG_APP = 1L << 12;
+
+        private static boolean sAsyncMethodsFetched = false;
+
+        private static Method sAsyncTraceBeginMethod;
+
+        private static Method sAsyncTraceEndMethod;
+
+        static void beginSection(String sectionName) {
+            Trace.beginSection(sectionName);
+        }
+
+        static void endSection() {
+            Trace.endSection();
+        }
+
+        static void asyncTrace(boolean begin, String sectionName, int cookie) {
+            if (!sAsyncMethodsFetched) {
+                fetchAsyncMethods();
+                sAsyncMethodsFetched = true;
+            }
+            Method method = begin ? sAsyncTraceBeginMethod : sAsyncTraceEndMethod;
+            if (method == null) {
+                return;
+            }
+            try {
+                if (Build.VERSION.SDK_INT >= Q) {
+                    method.invoke(null, sectionName, cookie);
+                } else {
+                    method.invoke(null, TRACE_TAG_APP, sectionName, cookie);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to trace async section " + sectionName, e);
+                sAsyncTraceBeginMethod = null;
+                sAsyncTraceEndMethod = null;
+            }
+        }
+
+        // Looked up by reflection as the library compiles against API 21.
+        private static void fetchAsyncMethods() {
+            try {
+                if (Build.VERSION.SDK_INT >= Q) {
+                    sAsyncTraceBeginMethod = Trace.class.getMethod("beginAsyncSection",
+                            String.class, int.class);
+                    sAsyncTraceEndMethod = Trace.class.getMethod("endAsyncSection",
+                            String.class, int.class);
+                } else {
+                    // Trace.asyncTraceBegin/End are hidden, and may not exist.
+                    sAsyncTraceBeginMethod = Trace.class.getMethod("asyncTraceBegin",
+                            long.class, String.class, int.class);
+                    sAsyncTraceEndMethod = Trace.class.getMethod("asyncTraceEnd",
+                            long.class, String.class, int.class);
+                }
+            } catch (NoSuchMethodException e) {
+                Log.i(TAG, "Async trace sections are not supported.");
+                sAsyncTraceBeginMethod = null;
+                sAsyncTraceEndMethod = null;
+            }
+        }
+    }
+}
@@ -194,4 +194,27 @@ public interface IMasterFragment
     public boolean onTrackballEvent(MotionEvent event);
 
     public boolean onGenericMotionEvent(MotionEvent event);
+
+    /**
+     * Implement it in an IMasterFragment to let it postpone its enter
+     * animation, MasterFragment and MasterListFragment implement it already.
+     */
+    public interface EnterAnimationPostponable {
+        /**
+         * Postpone the enter animation of this fragment until
+         * {@link #startPostponedEnterAnimation()} is called, e.g. until its
+         * data has been loaded. It only takes effect when enter animations
+         * are deferred by FragmentMaster, and should be called before the
+         * fragment's view is drawn for the first time.
+         *
+         * @see FragmentMaster#setEnterAnimationDeferred(boolean)
+         */
+        public void postponeEnterAnimation();
+
+        /**
+         * Start the enter animation postponed by
+         * {@link #postponeEnterAnimation()}.
+         */
+        public void startPostponedEnterAnimation();
+    }
 }
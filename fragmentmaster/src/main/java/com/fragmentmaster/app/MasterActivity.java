@@ -22,6 +22,9 @@ import android.support.v4.app.FragmentActivity;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Host activity of MasterFragment.
  */
@@ -41,6 +44,18 @@ public abstract class MasterActivity extends FragmentActivity implements IMaster
         mImpl.onSaveInstanceState(outState);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mImpl.onDestroy(isFinishing());
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mImpl.dump(prefix, fd, writer, args);
+    }
+
     public FragmentMaster getFragmentMaster() {
         return mImpl.getFragmentMaster();
     }
@@ -23,6 +23,9 @@ import android.support.v4.app.FragmentActivity;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 class MasterActivityDelegate {
     /**
      * Persistence key for FragmentMaster
@@ -42,12 +45,20 @@ class MasterActivityDelegate {
     }
 
     public void onSaveInstanceState(Bundle outState) {
-        Parcelable p = mFragmentMaster.saveAllState();
+        Parcelable p = mFragmentMaster.saveAllState(outState);
         if (p != null) {
             outState.putParcelable(FRAGMENTS_TAG, p);
         }
     }
 
+    public void onDestroy(boolean finishing) {
+        mFragmentMaster.onActivityDestroyed(finishing);
+    }
+
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        mFragmentMaster.dump(prefix, fd, writer, args);
+    }
+
     public FragmentMaster getFragmentMaster() {
         return mFragmentMaster;
     }
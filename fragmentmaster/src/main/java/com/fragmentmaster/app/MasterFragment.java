@@ -26,7 +26,8 @@ import android.view.View;
 
 import com.fragmentmaster.animator.PageAnimator;
 
-public class MasterFragment extends Fragment implements IMasterFragment {
+public class MasterFragment extends Fragment implements IMasterFragment,
+        IMasterFragment.EnterAnimationPostponable {
 
     private MasterFragmentDelegate mImpl = new MasterFragmentDelegate(this);
 
@@ -227,6 +228,16 @@ public class MasterFragment extends Fragment implements IMasterFragment {
         return mImpl.isSlideable();
     }
 
+    @Override
+    public void postponeEnterAnimation() {
+        mImpl.postponeEnterAnimation();
+    }
+
+    @Override
+    public void startPostponedEnterAnimation() {
+        mImpl.startPostponedEnterAnimation();
+    }
+
     @Override
     public void onFragmentResult(int requestCode, int resultCode, Request data) {
     }
@@ -24,7 +24,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.TypedValue;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
@@ -130,9 +129,7 @@ class MasterFragmentDelegate {
         // Use window background as the top level background.
         // Note: The view is an instance of NoSaveStateFrameLayout,
         // which is inserted between the Fragment's view and its container by FragmentManager.
-        TypedValue outValue = new TypedValue();
-        getFragmentContext().getTheme().resolveAttribute(android.R.attr.windowBackground, outValue, true);
-        view.setBackgroundResource(outValue.resourceId);
+        view.setBackgroundResource(getFragmentContext().getWindowBackgroundRes());
         // Set the "clickable" of the fragment's root view to true to avoid
         // touch events to be passed to the views behind the fragment.
         view.setClickable(true);
@@ -300,6 +297,16 @@ class MasterFragmentDelegate {
         return mFinished;
     }
 
+    public void postponeEnterAnimation() {
+        checkState();
+        getFragmentMaster().postponeEnterAnimation(mMasterFragment);
+    }
+
+    public void startPostponedEnterAnimation() {
+        checkState();
+        getFragmentMaster().startPostponedEnterAnimation(mMasterFragment);
+    }
+
     /**
      * Called when the fragment has detected the user's press of the back key.
      * The default implementation simply finishes the current fragment, but you
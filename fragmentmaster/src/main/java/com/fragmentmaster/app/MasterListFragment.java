@@ -27,7 +27,8 @@ import android.view.View;
 
 import com.fragmentmaster.animator.PageAnimator;
 
-public class MasterListFragment extends ListFragment implements IMasterFragment {
+public class MasterListFragment extends ListFragment implements IMasterFragment,
+        IMasterFragment.EnterAnimationPostponable {
 
     private MasterFragmentDelegate mImpl = new MasterFragmentDelegate(this);
 
@@ -228,6 +229,16 @@ public class MasterListFragment extends ListFragment implements IMasterFragment
         return mImpl.isSlideable();
     }
 
+    @Override
+    public void postponeEnterAnimation() {
+        mImpl.postponeEnterAnimation();
+    }
+
+    @Override
+    public void startPostponedEnterAnimation() {
+        mImpl.startPostponedEnterAnimation();
+    }
+
     @Override
     public void onFragmentResult(int requestCode, int resultCode, Request data) {
     }
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Measures how long navigations take in FragmentMaster. Install it by
+ * {@link FragmentMaster#setNavigationMetrics(NavigationMetrics)}.
+ * <p/>
+ * Each navigation records monotonic timestamps at several marks, which are
+ * reported to the {@link Listener} once the navigation is completed, and
+ * aggregated into per fragment class {@link Histogram}s.
+ * <p/>
+ * Must be used on the main thread.
+ */
+public class NavigationMetrics {
+
+    /**
+     * A navigation which starts a fragment.
+     */
+    public static final int TYPE_START = 0;
+
+    /**
+     * A navigation which finishes a fragment.
+     */
+    public static final int TYPE_FINISH = 1;
+
+    // Marks of a start navigation, in order.
+
+    /**
+     * The fragment is requested to start, or to finish.
+     */
+    public static final int MARK_REQUESTED = 0;
+
+    /**
+     * The fragment has been instantiated.
+     */
+    public static final int MARK_INSTANTIATED = 1;
+
+    /**
+     * The fragment's onCreate has been called.
+     */
+    public static final int MARK_CREATED = 2;
+
+    /**
+     * The fragment's onViewCreated has been called.
+     */
+    public static final int MARK_VIEW_CREATED = 3;
+
+    /**
+     * The FragmentTransaction adding the fragment has been executed.
+     */
+    public static final int MARK_COMMITTED = 4;
+
+    /**
+     * The fragment's page is about to be drawn for the first time.
+     */
+    public static final int MARK_FIRST_DRAW = 5;
+
+    /**
+     * The enter animation has settled.
+     */
+    public static final int MARK_SETTLED = 6;
+
+    // Marks of a finish navigation.
+
+    /**
+     * The FragmentTransaction removing the fragment has been executed.
+     */
+    public static final int MARK_REMOVED = 7;
+
+    private static final int MARK_COUNT = 8;
+
+    /**
+     * From {@link #MARK_REQUESTED} to {@link #MARK_FIRST_DRAW} of starts.
+     */
+    public static final int METRIC_START_TO_FIRST_DRAW = 0;
+
+    /**
+     * From {@link #MARK_REQUESTED} to {@link #MARK_SETTLED} of starts.
+     */
+    public static final int METRIC_START_TO_SETTLED = 1;
+
+    /**
+     * From {@link #MARK_REQUESTED} to {@link #MARK_REMOVED} of finishes,
+     * including the exit animation.
+     */
+    public static final int METRIC_FINISH_TO_REMOVED = 2;
+
+    private static final int METRIC_COUNT = 3;
+
+    /**
+     * Receives completed navigations.
+     */
+    public interface Listener {
+        void onNavigationCompleted(Navigation navigation);
+    }
+
+    private Listener mListener = null;
+
+    // Navigations in progress, keyed by the fragment.
+    private final IdentityHashMap<IMasterFragment, Navigation> mStarts =
+            new IdentityHashMap<IMasterFragment, Navigation>();
+
+    private final IdentityHashMap<IMasterFragment, Navigation> mFinishes =
+            new IdentityHashMap<IMasterFragment, Navigation>();
+
+    private final HashMap<Class<?>, Histogram[]> mHistograms = new HashMap<Class<?>, Histogram[]>();
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Returns the classes of fragments which have been measured.
+     */
+    public Set<Class<?>> getFragmentClasses() {
+        return mHistograms.keySet();
+    }
+
+    /**
+     * Returns the aggregated durations of a fragment class.
+     *
+     * @param metric One of {@link #METRIC_START_TO_FIRST_DRAW},
+     *               {@link #METRIC_START_TO_SETTLED} and
+     *               {@link #METRIC_FINISH_TO_REMOVED}.
+     * @return The histogram, or null if the class hasn't been measured.
+     */
+    public Histogram getHistogram(Class<?> fragmentClass, int metric) {
+        Histogram[] histograms = mHistograms.get(fragmentClass);
+        return histograms == null ? null : histograms[metric];
+    }
+
+    /**
+     * Clear all aggregated histograms.
+     */
+    public void reset() {
+        mHistograms.clear();
+    }
+
+    static long now() {
+        return System.nanoTime();
+    }
+
+    void onFragmentInstantiated(IMasterFragment fragment, long requestTime) {
+        Navigation navigation = new Navigation(TYPE_START, fragment.getClass());
+        navigation.mMarks[MARK_REQUESTED] = requestTime;
+        navigation.mMarks[MARK_INSTANTIATED] = now();
+        mStarts.put(fragment, navigation);
+    }
+
+    void onFragmentCreated(IMasterFragment fragment) {
+        mark(mStarts.get(fragment), MARK_CREATED);
+    }
+
+    void onFragmentViewCreated(IMasterFragment fragment) {
+        Navigation navigation = mStarts.get(fragment);
+        if (navigation != null && fragment.getView() != null) {
+            mark(navigation, MARK_VIEW_CREATED);
+            new FirstDrawListener(fragment, fragment.getView());
+        }
+    }
+
+    void onFinishFragment(IMasterFragment fragment) {
+        mStarts.remove(fragment);
+        if (!mFinishes.containsKey(fragment)) {
+            Navigation navigation = new Navigation(TYPE_FINISH, fragment.getClass());
+            navigation.mMarks[MARK_REQUESTED] = now();
+            mFinishes.put(fragment, navigation);
+        }
+    }
+
+    /**
+     * Called when a FragmentTransaction of FragmentMaster has been executed.
+     */
+    void onCommitted(FragmentMaster fragmentMaster) {
+        long now = now();
+        for (Navigation navigation : mStarts.values()) {
+            if (navigation.mMarks[MARK_COMMITTED] == -1) {
+                navigation.mMarks[MARK_COMMITTED] = now;
+            }
+        }
+        if (mFinishes.isEmpty()) {
+            return;
+        }
+        ArrayList<Navigation> removed = null;
+        Iterator<IMasterFragment> iterator = mFinishes.keySet().iterator();
+        while (iterator.hasNext()) {
+            IMasterFragment fragment = iterator.next();
+            if (!fragmentMaster.isInFragmentMaster(fragment)) {
+                if (removed == null) {
+                    removed = new ArrayList<Navigation>();
+                }
+                Navigation navigation = mFinishes.get(fragment);
+                navigation.mMarks[MARK_REMOVED] = now;
+                removed.add(navigation);
+                iterator.remove();
+            }
+        }
+        if (removed != null) {
+            for (Navigation navigation : removed) {
+                complete(navigation);
+            }
+        }
+    }
+
+    /**
+     * Called when the fragment is destroyed. Navigations of the fragment
+     * which can't be completed any more are dropped, so the fragment isn't
+     * retained.
+     */
+    void onFragmentDestroyed(FragmentMaster fragmentMaster, IMasterFragment fragment) {
+        mStarts.remove(fragment);
+        Navigation navigation = mFinishes.remove(fragment);
+        if (navigation != null && !fragmentMaster.isInFragmentMaster(fragment)) {
+            // Destroyed by the transaction removing it.
+            navigation.mMarks[MARK_REMOVED] = now();
+            complete(navigation);
+        }
+    }
+
+    /**
+     * Called when the enter animation of the fragment has settled, or
+     * immediately after it's committed if it's not animated.
+     */
+    void onSettled(IMasterFragment fragment) {
+        Navigation navigation = mStarts.get(fragment);
+        if (navigation != null && navigation.mMarks[MARK_SETTLED] == -1) {
+            navigation.mMarks[MARK_SETTLED] = now();
+            if (fragment.getView() == null) {
+                // There's nothing to draw.
+                navigation.mMarks[MARK_FIRST_DRAW] = navigation.mMarks[MARK_COMMITTED];
+            }
+            completeStartIfDone(fragment, navigation);
+        }
+    }
+
+    private void onFirstDraw(IMasterFragment fragment) {
+        Navigation navigation = mStarts.get(fragment);
+        if (navigation != null) {
+            mark(navigation, MARK_FIRST_DRAW);
+            completeStartIfDone(fragment, navigation);
+        }
+    }
+
+    private void completeStartIfDone(IMasterFragment fragment, Navigation navigation) {
+        if (navigation.mMarks[MARK_FIRST_DRAW] != -1 && navigation.mMarks[MARK_SETTLED] != -1) {
+            mStarts.remove(fragment);
+            complete(navigation);
+        }
+    }
+
+    private static void mark(Navigation navigation, int mark) {
+        if (navigation != null && navigation.mMarks[mark] == -1) {
+            navigation.mMarks[mark] = now();
+        }
+    }
+
+    private void complete(Navigation navigation) {
+        Histogram[] histograms = mHistograms.get(navigation.mFragmentClass);
+        if (histograms == null) {
+            histograms = new Histogram[METRIC_COUNT];
+            for (int i = 0; i < METRIC_COUNT; i++) {
+                histograms[i] = new Histogram();
+            }
+            mHistograms.put(navigation.mFragmentClass, histograms);
+        }
+        if (navigation.mType == TYPE_START) {
+            histograms[METRIC_START_TO_FIRST_DRAW].add(
+                    navigation.getDurationNanos(MARK_REQUESTED, MARK_FIRST_DRAW));
+            histograms[METRIC_START_TO_SETTLED].add(
+                    navigation.getDurationNanos(MARK_REQUESTED, MARK_SETTLED));
+        } else {
+            histograms[METRIC_FINISH_TO_REMOVED].add(
+                    navigation.getDurationNanos(MARK_REQUESTED, MARK_REMOVED));
+        }
+        if (mListener != null) {
+            mListener.onNavigationCompleted(navigation);
+        }
+    }
+
+    private class FirstDrawListener implements ViewTreeObserver.OnPreDrawListener {
+
+        private final IMasterFragment mFragment;
+
+        private final View mView;
+
+        FirstDrawListener(IMasterFragment fragment, View view) {
+            mFragment = fragment;
+            mView = view;
+            view.getViewTreeObserver().addOnPreDrawListener(this);
+        }
+
+        @Override
+        public boolean onPreDraw() {
+            ViewTreeObserver observer = mView.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(this);
+            }
+            onFirstDraw(mFragment);
+            return true;
+        }
+    }
+
+    /**
+     * Timestamps of a navigation.
+     */
+    public static final class Navigation {
+
+        private final int mType;
+
+        private final Class<?> mFragmentClass;
+
+        private final long[] mMarks = new long[MARK_COUNT];
+
+        Navigation(int type, Class<?> fragmentClass) {
+            mType = type;
+            mFragmentClass = fragmentClass;
+            for (int i = 0; i < MARK_COUNT; i++) {
+                mMarks[i] = -1;
+            }
+        }
+
+        /**
+         * Returns {@link #TYPE_START} or {@link #TYPE_FINISH}.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        public Class<?> getFragmentClass() {
+            return mFragmentClass;
+        }
+
+        /**
+         * Returns the {@link System#nanoTime()} at the mark, or -1 if the
+         * navigation hasn't passed the mark.
+         */
+        public long getTimeNanos(int mark) {
+            return mMarks[mark];
+        }
+
+        /**
+         * Returns the duration between two marks, or -1 if the navigation
+         * hasn't passed one of them. Durations between adjacent marks make
+         * up the per-phase split of the navigation.
+         */
+        public long getDurationNanos(int fromMark, int toMark) {
+            if (mMarks[fromMark] == -1 || mMarks[toMark] == -1) {
+                return -1;
+            }
+            return mMarks[toMark] - mMarks[fromMark];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mType == TYPE_START ? "Start " : "Finish ")
+                    .append(mFragmentClass.getName()).append(" {");
+            long origin = mMarks[MARK_REQUESTED];
+            for (int i = 1; i < MARK_COUNT; i++) {
+                if (mMarks[i] != -1) {
+                    sb.append(" ").append(i).append("=+")
+                            .append((mMarks[i] - origin) / 1000000f).append("ms");
+                }
+            }
+            return sb.append(" }").toString();
+        }
+    }
+
+    /**
+     * Aggregated durations, in exponential buckets of milliseconds.
+     */
+    public static final class Histogram {
+
+        // Upper bounds of the buckets: 1, 2, 4, ... 4096ms, and the last one
+        // is unbounded.
+        private static final int BUCKET_COUNT = 14;
+
+        private final int[] mCounts = new int[BUCKET_COUNT];
+
+        private int mTotalCount = 0;
+
+        private long mSumNanos = 0;
+
+        private long mMaxNanos = 0;
+
+        void add(long durationNanos) {
+            if (durationNanos < 0) {
+                return;
+            }
+            long millis = durationNanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotalCount++;
+            mSumNanos += durationNanos;
+            mMaxNanos = Math.max(mMaxNanos, durationNanos);
+        }
+
+        public int getBucketCount() {
+            return BUCKET_COUNT;
+        }
+
+        /**
+         * Returns the exclusive upper bound of the bucket in milliseconds, or
+         * {@link Long#MAX_VALUE} for the last bucket.
+         */
+        public long getBucketUpperBoundMillis(int bucket) {
+            return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        public int getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        public int getTotalCount() {
+            return mTotalCount;
+        }
+
+        public long getMeanNanos() {
+            return mTotalCount == 0 ? 0 : mSumNanos / mTotalCount;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.DrawableContainer;
+import android.graphics.drawable.LayerDrawable;
+import android.support.v4.app.FragmentSavedStateCompat;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Estimated memory usage of a page in FragmentMaster, see
+ * {@link FragmentMaster#getPageMemoryInfo()}.
+ * <p/>
+ * Drawable bytes count the bitmaps of backgrounds, ImageView drawables and
+ * TextView compound drawables in the page's view hierarchy, each bitmap
+ * once. Saved state bytes count the parcelled Request and the state the
+ * fragment already keeps: the view hierarchy state saved when its view was
+ * destroyed, and the state it was restored from. Nothing is saved to measure
+ * it, so a page which has kept its view since it was started only counts
+ * its Request.
+ */
+public final class PageMemoryInfo {
+
+    private final int mIndex;
+
+    private final Class<?> mFragmentClass;
+
+    private final boolean mHasView;
+
+    private int mViewCount = 0;
+
+    private long mDrawableBytes = 0;
+
+    private int mSavedStateBytes = 0;
+
+    private PageMemoryInfo(int index, IMasterFragment fragment) {
+        mIndex = index;
+        mFragmentClass = fragment.getClass();
+        mHasView = fragment.getView() != null;
+    }
+
+    static PageMemoryInfo collect(int index, IMasterFragment fragment) {
+        PageMemoryInfo info = new PageMemoryInfo(index, fragment);
+        View view = fragment.getView();
+        if (view != null) {
+            info.walk(view, new IdentityHashMap<Bitmap, Boolean>());
+        }
+        info.mSavedStateBytes = Parcels.sizeOf(fragment.getRequest())
+                + FragmentSavedStateCompat.sizeOfSavedState(fragment.getFragment());
+        return info;
+    }
+
+    private void walk(View view, IdentityHashMap<Bitmap, Boolean> counted) {
+        mViewCount++;
+        addDrawable(view.getBackground(), counted);
+        if (view instanceof ImageView) {
+            addDrawable(((ImageView) view).getDrawable(), counted);
+        } else if (view instanceof TextView) {
+            for (Drawable d : ((TextView) view).getCompoundDrawables()) {
+                addDrawable(d, counted);
+            }
+        }
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                walk(group.getChildAt(i), counted);
+            }
+        }
+    }
+
+    private void addDrawable(Drawable drawable, IdentityHashMap<Bitmap, Boolean> counted) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null && !bitmap.isRecycled() && counted.put(bitmap, Boolean.TRUE) == null) {
+                mDrawableBytes += (long) bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        } else if (drawable instanceof LayerDrawable) {
+            LayerDrawable layers = (LayerDrawable) drawable;
+            final int count = layers.getNumberOfLayers();
+            for (int i = 0; i < count; i++) {
+                addDrawable(layers.getDrawable(i), counted);
+            }
+        } else if (drawable instanceof DrawableContainer) {
+            Drawable current = drawable.getCurrent();
+            if (current != drawable) {
+                addDrawable(current, counted);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the page in FragmentMaster, from bottom to top.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public Class<?> getFragmentClass() {
+        return mFragmentClass;
+    }
+
+    /**
+     * Whether the page had its view when it was measured. Pages without a
+     * view only count their saved state.
+     */
+    public boolean hasView() {
+        return mHasView;
+    }
+
+    public int getViewCount() {
+        return mViewCount;
+    }
+
+    public long getDrawableBytes() {
+        return mDrawableBytes;
+    }
+
+    public int getSavedStateBytes() {
+        return mSavedStateBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PageMemoryInfo { #" + mIndex + " " + mFragmentClass.getSimpleName()
+                + ", views=" + mViewCount
+                + ", drawableBytes=" + mDrawableBytes
+                + ", savedStateBytes=" + mSavedStateBytes + " }";
+    }
+}
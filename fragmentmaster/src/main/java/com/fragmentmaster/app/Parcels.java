@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+final class Parcels {
+
+    private Parcels() {
+    }
+
+    /**
+     * Returns the number of bytes the Parcelable takes when it's written to
+     * a Parcel, or 0 if it's null.
+     */
+    static int sizeOf(Parcelable parcelable) {
+        if (parcelable == null) {
+            return 0;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(parcelable, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -16,14 +16,17 @@
 
 package com.fragmentmaster.app;
 
-import android.os.Bundle;
-import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentManagerStateCompat;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 class Records {
 
@@ -31,19 +34,63 @@ class Records {
 
     private ArrayList<IMasterFragment> mFragments = new ArrayList<IMasterFragment>();
 
+    // Position of each fragment in mFragments, keyed by identity.
+    private final IdentityHashMap<IMasterFragment, Integer> mIndices =
+            new IdentityHashMap<IMasterFragment, Integer>();
+
+    // Fragments below mFragments which are not restored yet, from bottom to
+    // top. The position of one in the stack is its index in this list.
+    private final ArrayList<DeferredFragment> mDeferred = new ArrayList<DeferredFragment>();
+
+    // Links from fragments to targets which are not restored yet, as
+    // {position, requestCode}.
+    private final IdentityHashMap<IMasterFragment, int[]> mDeferredTargets =
+            new IdentityHashMap<IMasterFragment, int[]>();
+
+    private ExtrasStore mExtrasStore;
+
+    // Handles of the Request extras retained for fragments in the records,
+    // and for removed fragments which are not destroyed yet.
+    private final IdentityHashMap<IMasterFragment, String> mExtrasHandles =
+            new IdentityHashMap<IMasterFragment, String>();
+
+    private final IdentityHashMap<IMasterFragment, String> mRemovedExtrasHandles =
+            new IdentityHashMap<IMasterFragment, String>();
+
+    /**
+     * Set the store of the extras of the fragments' Requests. The records
+     * retain the extras of their fragments and deferred fragments, until the
+     * fragments are destroyed after they are removed, or the activity is
+     * destroyed.
+     */
+    public void setExtrasStore(ExtrasStore store) {
+        mExtrasStore = store;
+    }
+
     public void add(IMasterFragment fragment, IMasterFragment target, int requestCode) {
         fragment.setTargetFragment(
                 target == null ? null : target.getFragment(), requestCode);
+        mIndices.put(fragment, mFragments.size());
         mFragments.add(fragment);
+        retainExtras(fragment);
     }
 
     public void remove(IMasterFragment fragment) {
-        int index = mFragments.indexOf(fragment);
+        int index = indexOf(fragment);
         mFragments.remove(index);
+        mIndices.remove(fragment);
+        mDeferredTargets.remove(fragment);
+        String handle = mExtrasHandles.remove(fragment);
+        if (handle != null) {
+            // Kept until the fragment is destroyed, it may still be visible.
+            mRemovedExtrasHandles.put(fragment, handle);
+        }
 
         IMasterFragment f;
         for (int i = index; i < mFragments.size(); i++) {
             f = mFragments.get(i);
+            // Fragments above the removed one move down by one position.
+            mIndices.put(f, i);
             IMasterFragment target = (IMasterFragment) f.getTargetFragment();
             if (target == fragment) {
                 f.setTargetFragment(null, -1);
@@ -56,52 +103,187 @@ class Records {
     }
 
     public int indexOf(IMasterFragment fragment) {
-        return mFragments.indexOf(fragment);
+        Integer index = mIndices.get(fragment);
+        return index == null ? -1 : index;
     }
 
     public boolean has(IMasterFragment fragment) {
-        return mFragments.contains(fragment);
+        return mIndices.containsKey(fragment);
     }
 
     public List<IMasterFragment> getFragments() {
         return Collections.unmodifiableList(mFragments);
     }
 
-    public Bundle save(FragmentManager fragmentManager) {
-        Bundle fragments = null;
+    public int getDeferredCount() {
+        return mDeferred.size();
+    }
+
+    public DeferredFragment[] getDeferred() {
+        return mDeferred.toArray(new DeferredFragment[mDeferred.size()]);
+    }
+
+    /**
+     * Returns the deferred fragment which is restored next.
+     */
+    public DeferredFragment peekDeferred() {
+        return mDeferred.get(mDeferred.size() - 1);
+    }
+
+    /**
+     * Returns the link of the fragment to a target which is not restored yet,
+     * as {position, requestCode}, or null if there isn't one.
+     */
+    public int[] getDeferredTarget(IMasterFragment fragment) {
+        return mDeferredTargets.get(fragment);
+    }
+
+    /**
+     * Link the fragment to the deferred fragment at position, it's targeted
+     * once the deferred fragment is restored.
+     */
+    public void setDeferredTarget(IMasterFragment fragment, int position, int requestCode) {
+        if (position >= 0 && position < mDeferred.size()) {
+            mDeferredTargets.put(fragment, new int[]{position, requestCode});
+        }
+    }
+
+    /**
+     * Put the fragment restored from {@link #peekDeferred()} at the bottom of
+     * the records, and link it with its target and the fragments targeting it.
+     */
+    public void addRestored(IMasterFragment fragment) {
+        DeferredFragment deferred = mDeferred.remove(mDeferred.size() - 1);
+        int position = mDeferred.size();
+        fragment.setMenuVisibility(false);
+        mFragments.add(0, fragment);
         for (int i = 0; i < mFragments.size(); i++) {
-            Fragment f = mFragments.get(i).getFragment();
-            if (f != null) {
-                if (fragments == null) {
-                    fragments = new Bundle();
-                }
-                String key = "f" + i;
-                fragmentManager.putFragment(fragments, key, f);
+            mIndices.put(mFragments.get(i), i);
+        }
+        if (deferred.mExtrasHandle != null) {
+            // The restored fragment takes over the reference.
+            mExtrasHandles.put(fragment, deferred.mExtrasHandle);
+        }
+
+        for (Iterator<Map.Entry<IMasterFragment, int[]>> it = mDeferredTargets.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<IMasterFragment, int[]> link = it.next();
+            if (link.getValue()[0] == position) {
+                link.getKey().setTargetFragment(fragment.getFragment(), link.getValue()[1]);
+                it.remove();
+            }
+        }
+        int target = deferred.mTargetPosition;
+        if (target > position && target - position < mFragments.size()) {
+            fragment.setTargetFragment(mFragments.get(target - position).getFragment(),
+                    deferred.mTargetRequestCode);
+        } else if (target >= 0 && target < position) {
+            mDeferredTargets.put(fragment, new int[]{target, deferred.mTargetRequestCode});
+        }
+    }
+
+    /**
+     * Save the records, leaving out the excluded fragments.
+     *
+     * @return The references of the fragments in FragmentManager, which are
+     * their indices, from bottom to top.
+     */
+    public int[] save(FragmentManager fragmentManager, Set<IMasterFragment> excluded) {
+        int[] fragments = new int[mFragments.size()];
+        int count = 0;
+        for (int i = 0; i < mFragments.size(); i++) {
+            IMasterFragment fragment = mFragments.get(i);
+            if (excluded == null || !excluded.contains(fragment)) {
+                fragments[count++] = FragmentManagerStateCompat.getIndex(fragment.getFragment());
             }
         }
+        if (count < fragments.length) {
+            int[] saved = new int[count];
+            System.arraycopy(fragments, 0, saved, 0, count);
+            fragments = saved;
+        }
         return fragments;
     }
 
-    public void restore(FragmentManager fragmentManager, Bundle fragments) {
+    /**
+     * Restore the records from the references saved by
+     * {@link #save(FragmentManager, Set)}, above the deferred fragments.
+     *
+     * @return The restored fragments in the same order as the references,
+     * with null for the ones which couldn't be restored.
+     */
+    public IMasterFragment[] restore(FragmentManager fragmentManager, int[] fragments,
+                                     DeferredFragment[] deferred) {
+        dropExtras();
         mFragments.clear();
-        if (fragments != null) {
-            Iterable<String> keys = fragments.keySet();
-            for (String key : keys) {
-                if (key.startsWith("f")) {
-                    int index = Integer.parseInt(key.substring(1));
-                    IMasterFragment f = (IMasterFragment) fragmentManager
-                            .getFragment(fragments, key);
-                    if (f != null) {
-                        while (mFragments.size() <= index) {
-                            mFragments.add(null);
-                        }
-                        f.setMenuVisibility(false);
-                        mFragments.set(index, f);
-                    } else {
-                        Log.w(TAG, "Bad fragment at key " + key);
-                    }
-                }
+        mIndices.clear();
+        mDeferred.clear();
+        mDeferredTargets.clear();
+        for (DeferredFragment d : deferred) {
+            if (mExtrasStore != null && mExtrasStore.owns(d.mExtrasHandle)) {
+                ExtrasStore.retain(d.mExtrasHandle);
+            } else {
+                d.mExtrasHandle = null;
+            }
+            mDeferred.add(d);
+        }
+        IMasterFragment[] restored = new IMasterFragment[fragments.length];
+        for (int i = 0; i < fragments.length; i++) {
+            IMasterFragment f = (IMasterFragment) FragmentManagerStateCompat.getActiveFragment(
+                    fragmentManager, fragments[i]);
+            if (f != null) {
+                f.setMenuVisibility(false);
+                mIndices.put(f, mFragments.size());
+                mFragments.add(f);
+                retainExtras(f);
+                restored[i] = f;
+            } else {
+                Log.w(TAG, "Bad fragment reference " + fragments[i] + " at " + i);
             }
         }
+        return restored;
+    }
+
+    /**
+     * Release the extras retained for the fragment if it was removed, the
+     * files which are not retained anymore are deleted.
+     */
+    public void onFragmentDestroyed(IMasterFragment fragment) {
+        String handle = mRemovedExtrasHandles.remove(fragment);
+        if (handle != null) {
+            ExtrasStore.release(handle);
+        }
+    }
+
+    /**
+     * Drop all the references of extras held by the records without deleting
+     * the files, when the activity is destroyed. The files are retained again
+     * by the records of the recreated activity, or collected when it's
+     * installed.
+     */
+    public void dropExtras() {
+        for (String handle : mExtrasHandles.values()) {
+            ExtrasStore.drop(handle);
+        }
+        for (String handle : mRemovedExtrasHandles.values()) {
+            ExtrasStore.drop(handle);
+        }
+        for (DeferredFragment d : mDeferred) {
+            if (d.mExtrasHandle != null) {
+                ExtrasStore.drop(d.mExtrasHandle);
+            }
+        }
+        mExtrasHandles.clear();
+        mRemovedExtrasHandles.clear();
+    }
+
+    private void retainExtras(IMasterFragment fragment) {
+        Request request = fragment.getRequest();
+        String handle = request != null ? request.getExtrasHandle() : null;
+        if (mExtrasStore != null && mExtrasStore.owns(handle)
+                && !mExtrasHandles.containsKey(fragment)) {
+            ExtrasStore.retain(handle);
+            mExtrasHandles.put(fragment, handle);
+        }
     }
 }
@@ -32,6 +32,11 @@ public class Request implements Parcelable, Cloneable {
 
     private Bundle mExtras;
 
+    // Handle of the extras written to ExtrasStore. If it's set, mExtras is
+    // loaded from the store when it's first used, unless this Request wrote
+    // them and still has them.
+    private String mExtrasHandle;
+
     public static final Parcelable.Creator<Request> CREATOR = new Parcelable.Creator<Request>() {
         public Request createFromParcel(Parcel in) {
             return new Request(in);
@@ -51,7 +56,12 @@ public class Request implements Parcelable, Cloneable {
 
     public Request(Request o) {
         this.mFragmentName = o.mFragmentName;
+        // The copy shares the file without a reference, the file is kept
+        // while the fragment of the Request in Records is alive.
+        this.mExtrasHandle = o.mExtrasHandle;
         if (o.mExtras != null) {
+            // Extras in memory are copied even if they're in ExtrasStore, so
+            // the copy doesn't read the file.
             this.mExtras = new Bundle(o.mExtras);
         }
     }
@@ -75,6 +85,7 @@ public class Request implements Parcelable, Cloneable {
     private void readFromParcel(Parcel in) {
         mFragmentName = in.readString();
         mExtras = in.readBundle();
+        mExtrasHandle = in.readString();
     }
 
     public String getClassName() {
@@ -98,13 +109,61 @@ public class Request implements Parcelable, Cloneable {
 
     @Override
     public int describeContents() {
-        return (mExtras != null) ? mExtras.describeContents() : 0;
+        // Extras in ExtrasStore have no file descriptors.
+        return (mExtrasHandle == null && mExtras != null) ? mExtras.describeContents() : 0;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mFragmentName);
-        dest.writeBundle(mExtras);
+        dest.writeBundle(mExtrasHandle == null ? mExtras : null);
+        dest.writeString(mExtrasHandle);
+    }
+
+    /**
+     * Returns the handle of the extras in ExtrasStore, or null if the extras
+     * are carried by the Request.
+     */
+    String getExtrasHandle() {
+        return mExtrasHandle;
+    }
+
+    /**
+     * Let the Request carry only the handle of its extras when it's
+     * parcelled, as they have been written to ExtrasStore. It keeps the
+     * extras in memory, and so do its copies.
+     */
+    void setExtrasHandle(String handle) {
+        mExtrasHandle = handle;
+    }
+
+    /**
+     * Returns the extras, loading them from ExtrasStore if needed.
+     */
+    Bundle loadExtras() {
+        if (mExtrasHandle != null && mExtras == null) {
+            mExtras = ExtrasStore.read(mExtrasHandle, Request.class.getClassLoader());
+            if (mExtras == null) {
+                // The extras are lost, ExtrasStore has logged why.
+                mExtrasHandle = null;
+            }
+        }
+        return mExtras;
+    }
+
+    /**
+     * Let the Request carry its extras itself, before they are changed, or
+     * when the extras in ExtrasStore may be deleted while it's still used.
+     */
+    void detachExtras() {
+        loadExtras();
+        mExtrasHandle = null;
+    }
+
+    @Override
+    public String toString() {
+        boolean hasExtras = mExtras != null || mExtrasHandle != null;
+        return "Request { " + mFragmentName + (hasExtras ? " (has extras)" : "") + " }";
     }
 
     /**
@@ -118,7 +177,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, boolean)
      */
     public boolean getBooleanExtra(String name, boolean defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getBoolean(name,
+        return loadExtras() == null ? defaultValue : mExtras.getBoolean(name,
                 defaultValue);
     }
 
@@ -133,7 +192,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, byte)
      */
     public byte getByteExtra(String name, byte defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getByte(name,
+        return loadExtras() == null ? defaultValue : mExtras.getByte(name,
                 defaultValue);
     }
 
@@ -148,7 +207,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, short)
      */
     public short getShortExtra(String name, short defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getShort(name,
+        return loadExtras() == null ? defaultValue : mExtras.getShort(name,
                 defaultValue);
     }
 
@@ -163,7 +222,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, char)
      */
     public char getCharExtra(String name, char defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getChar(name,
+        return loadExtras() == null ? defaultValue : mExtras.getChar(name,
                 defaultValue);
     }
 
@@ -178,7 +237,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, int)
      */
     public int getIntExtra(String name, int defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getInt(name,
+        return loadExtras() == null ? defaultValue : mExtras.getInt(name,
                 defaultValue);
     }
 
@@ -193,7 +252,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, long)
      */
     public long getLongExtra(String name, long defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getLong(name,
+        return loadExtras() == null ? defaultValue : mExtras.getLong(name,
                 defaultValue);
     }
 
@@ -208,7 +267,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, float)
      */
     public float getFloatExtra(String name, float defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getFloat(name,
+        return loadExtras() == null ? defaultValue : mExtras.getFloat(name,
                 defaultValue);
     }
 
@@ -223,7 +282,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, double)
      */
     public double getDoubleExtra(String name, double defaultValue) {
-        return mExtras == null ? defaultValue : mExtras.getDouble(name,
+        return loadExtras() == null ? defaultValue : mExtras.getDouble(name,
                 defaultValue);
     }
 
@@ -236,7 +295,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, String)
      */
     public String getStringExtra(String name) {
-        return mExtras == null ? null : mExtras.getString(name);
+        return loadExtras() == null ? null : mExtras.getString(name);
     }
 
     /**
@@ -248,7 +307,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, CharSequence)
      */
     public CharSequence getCharSequenceExtra(String name) {
-        return mExtras == null ? null : mExtras.getCharSequence(name);
+        return loadExtras() == null ? null : mExtras.getCharSequence(name);
     }
 
     /**
@@ -260,7 +319,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, Parcelable)
      */
     public <T extends Parcelable> T getParcelableExtra(String name) {
-        return mExtras == null ? null : mExtras.<T>getParcelable(name);
+        return loadExtras() == null ? null : mExtras.<T>getParcelable(name);
     }
 
     /**
@@ -272,7 +331,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, Parcelable[])
      */
     public Parcelable[] getParcelableArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getParcelableArray(name);
+        return loadExtras() == null ? null : mExtras.getParcelableArray(name);
     }
 
     /**
@@ -285,7 +344,7 @@ public class Request implements Parcelable, Cloneable {
      */
     public <T extends Parcelable> ArrayList<T> getParcelableArrayListExtra(
             String name) {
-        return mExtras == null ? null : mExtras
+        return loadExtras() == null ? null : mExtras
                 .<T>getParcelableArrayList(name);
     }
 
@@ -298,7 +357,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, Serializable)
      */
     public Serializable getSerializableExtra(String name) {
-        return mExtras == null ? null : mExtras.getSerializable(name);
+        return loadExtras() == null ? null : mExtras.getSerializable(name);
     }
 
     /**
@@ -310,7 +369,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putIntegerArrayListExtra(String, ArrayList)
      */
     public ArrayList<Integer> getIntegerArrayListExtra(String name) {
-        return mExtras == null ? null : mExtras.getIntegerArrayList(name);
+        return loadExtras() == null ? null : mExtras.getIntegerArrayList(name);
     }
 
     /**
@@ -322,7 +381,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putStringArrayListExtra(String, ArrayList)
      */
     public ArrayList<String> getStringArrayListExtra(String name) {
-        return mExtras == null ? null : mExtras.getStringArrayList(name);
+        return loadExtras() == null ? null : mExtras.getStringArrayList(name);
     }
 
     /**
@@ -334,7 +393,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, boolean[])
      */
     public boolean[] getBooleanArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getBooleanArray(name);
+        return loadExtras() == null ? null : mExtras.getBooleanArray(name);
     }
 
     /**
@@ -346,7 +405,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, byte[])
      */
     public byte[] getByteArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getByteArray(name);
+        return loadExtras() == null ? null : mExtras.getByteArray(name);
     }
 
     /**
@@ -358,7 +417,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, short[])
      */
     public short[] getShortArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getShortArray(name);
+        return loadExtras() == null ? null : mExtras.getShortArray(name);
     }
 
     /**
@@ -370,7 +429,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, char[])
      */
     public char[] getCharArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getCharArray(name);
+        return loadExtras() == null ? null : mExtras.getCharArray(name);
     }
 
     /**
@@ -382,7 +441,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, int[])
      */
     public int[] getIntArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getIntArray(name);
+        return loadExtras() == null ? null : mExtras.getIntArray(name);
     }
 
     /**
@@ -394,7 +453,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, long[])
      */
     public long[] getLongArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getLongArray(name);
+        return loadExtras() == null ? null : mExtras.getLongArray(name);
     }
 
     /**
@@ -406,7 +465,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, float[])
      */
     public float[] getFloatArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getFloatArray(name);
+        return loadExtras() == null ? null : mExtras.getFloatArray(name);
     }
 
     /**
@@ -418,7 +477,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, double[])
      */
     public double[] getDoubleArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getDoubleArray(name);
+        return loadExtras() == null ? null : mExtras.getDoubleArray(name);
     }
 
     /**
@@ -430,7 +489,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, String[])
      */
     public String[] getStringArrayExtra(String name) {
-        return mExtras == null ? null : mExtras.getStringArray(name);
+        return loadExtras() == null ? null : mExtras.getStringArray(name);
     }
 
     /**
@@ -442,7 +501,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra(String, Bundle)
      */
     public Bundle getBundleExtra(String name) {
-        return mExtras == null ? null : mExtras.getBundle(name);
+        return loadExtras() == null ? null : mExtras.getBundle(name);
     }
 
     /**
@@ -457,6 +516,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getBooleanExtra(String, boolean)
      */
     public Request putExtra(String name, boolean value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -476,6 +536,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getByteExtra(String, byte)
      */
     public Request putExtra(String name, byte value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -495,6 +556,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getCharExtra(String, char)
      */
     public Request putExtra(String name, char value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -514,6 +576,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getShortExtra(String, short)
      */
     public Request putExtra(String name, short value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -533,6 +596,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getIntExtra(String, int)
      */
     public Request putExtra(String name, int value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -552,6 +616,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getLongExtra(String, long)
      */
     public Request putExtra(String name, long value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -571,6 +636,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getFloatExtra(String, float)
      */
     public Request putExtra(String name, float value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -590,6 +656,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getDoubleExtra(String, double)
      */
     public Request putExtra(String name, double value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -609,6 +676,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getStringExtra(String)
      */
     public Request putExtra(String name, String value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -628,6 +696,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getCharSequenceExtra(String)
      */
     public Request putExtra(String name, CharSequence value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -647,6 +716,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getParcelableExtra(String)
      */
     public Request putExtra(String name, Parcelable value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -666,6 +736,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getParcelableArrayExtra(String)
      */
     public Request putExtra(String name, Parcelable[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -686,6 +757,7 @@ public class Request implements Parcelable, Cloneable {
      */
     public Request putParcelableArrayListExtra(String name,
             ArrayList<? extends Parcelable> value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -706,6 +778,7 @@ public class Request implements Parcelable, Cloneable {
      */
     public Request putIntegerArrayListExtra(String name,
             ArrayList<Integer> value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -725,6 +798,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getStringArrayListExtra(String)
      */
     public Request putStringArrayListExtra(String name, ArrayList<String> value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -744,6 +818,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getSerializableExtra(String)
      */
     public Request putExtra(String name, Serializable value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -763,6 +838,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getBooleanArrayExtra(String)
      */
     public Request putExtra(String name, boolean[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -782,6 +858,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getByteArrayExtra(String)
      */
     public Request putExtra(String name, byte[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -801,6 +878,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getShortArrayExtra(String)
      */
     public Request putExtra(String name, short[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -820,6 +898,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getCharArrayExtra(String)
      */
     public Request putExtra(String name, char[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -839,6 +918,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getIntArrayExtra(String)
      */
     public Request putExtra(String name, int[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -858,6 +938,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getLongArrayExtra(String)
      */
     public Request putExtra(String name, long[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -877,6 +958,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getFloatArrayExtra(String)
      */
     public Request putExtra(String name, float[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -896,6 +978,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getDoubleArrayExtra(String)
      */
     public Request putExtra(String name, double[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -915,6 +998,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getStringArrayExtra(String)
      */
     public Request putExtra(String name, String[] value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -934,6 +1018,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #getBundleExtra(String)
      */
     public Request putExtra(String name, Bundle value) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -948,7 +1033,8 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra
      */
     public Request putExtras(Request src) {
-        if (src.mExtras != null) {
+        detachExtras();
+        if (src.loadExtras() != null) {
             if (mExtras == null) {
                 mExtras = new Bundle(src.mExtras);
             } else {
@@ -966,6 +1052,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #removeExtra
      */
     public Request putExtras(Bundle extras) {
+        detachExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
@@ -981,7 +1068,9 @@ public class Request implements Parcelable, Cloneable {
      *            target request, replacing any that were previously there.
      */
     public Request replaceExtras(Request src) {
-        mExtras = src.mExtras != null ? new Bundle(src.mExtras) : null;
+        Bundle extras = src.loadExtras() != null ? new Bundle(src.mExtras) : null;
+        mExtrasHandle = null;
+        mExtras = extras;
         return this;
     }
 
@@ -993,6 +1082,7 @@ public class Request implements Parcelable, Cloneable {
      *               extras.
      */
     public Request replaceExtras(Bundle extras) {
+        mExtrasHandle = null;
         mExtras = extras != null ? new Bundle(extras) : null;
         return this;
     }
@@ -1003,6 +1093,7 @@ public class Request implements Parcelable, Cloneable {
      * @see #putExtra
      */
     public void removeExtra(String name) {
+        detachExtras();
         if (mExtras != null) {
             mExtras.remove(name);
             if (mExtras.size() == 0) {
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.support.v4.app.FragmentManagerStateCompat;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the parcelled size of the activity's saved state when it's saved,
+ * and keeps it within a byte budget. Install it by
+ * {@link FragmentMaster#setSavedStateBudget(SavedStateBudget)}.
+ * <p/>
+ * When the budget would be exceeded, the saved view state of the pages below
+ * the primary page is dropped, from the bottom of the stack, until the state
+ * fits. If it still doesn't fit, those pages are dropped as a whole, from the
+ * bottom of the stack. The primary page and the pages above it are never
+ * dropped. Dropping only affects the saved state: the pages stay alive, and
+ * are lost only if the activity is recreated from that state.
+ */
+public class SavedStateBudget {
+
+    /**
+     * Use this budget to measure the state only.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * Receives a report each time the state is saved.
+     */
+    public interface Listener {
+        void onStateSaved(Report report);
+    }
+
+    private final int mBudgetBytes;
+
+    private final Listener mListener;
+
+    public SavedStateBudget(int budgetBytes, Listener listener) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetBytes);
+        }
+        mBudgetBytes = budgetBytes;
+        mListener = listener;
+    }
+
+    public int getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Apply the budget to the saved state of the activity, which already
+     * contains the state of FragmentManager, and the saved state of
+     * FragmentMaster which is going to be put in it.
+     */
+    void apply(FragmentMaster fragmentMaster, Bundle activityState, FragmentMasterState state) {
+        Parcelable fms = FragmentManagerStateCompat.getFragmentManagerState(activityState);
+        List<IMasterFragment> fragments = fragmentMaster.getFragments();
+        Report report = new Report(mBudgetBytes, fragments.size());
+        int[] indices = new int[fragments.size()];
+        for (int i = 0; i < fragments.size(); i++) {
+            IMasterFragment fragment = fragments.get(i);
+            indices[i] = FragmentManagerStateCompat.getIndex(fragment.getFragment());
+            Report.Entry entry = new Report.Entry(fragment.getClass());
+            entry.mFragmentStateBytes = fms != null
+                    ? FragmentManagerStateCompat.sizeOfFragmentState(fms, indices[i]) : 0;
+            entry.mRequestBytes = Parcels.sizeOf(fragment.getRequest());
+            report.mEntries[i] = entry;
+        }
+        // Parcelled once, the total follows the sizes of what's dropped.
+        int stateBytes = Parcels.sizeOf(state);
+        int total = Parcels.sizeOf(activityState) + stateBytes;
+        report.mMeasuredBytes = total;
+
+        // The pages below the primary one may be dropped.
+        int droppable = fragmentMaster.indexOf(fragmentMaster.getPrimaryFragment());
+        if (total > mBudgetBytes && fms != null) {
+            for (int i = 0; i < droppable && total > mBudgetBytes; i++) {
+                Report.Entry entry = report.mEntries[i];
+                if (FragmentManagerStateCompat.dropViewState(fms, indices[i])) {
+                    int size = FragmentManagerStateCompat.sizeOfFragmentState(fms, indices[i]);
+                    total -= entry.mFragmentStateBytes - size;
+                    entry.mFragmentStateBytes = size;
+                    entry.mViewStateDropped = true;
+                }
+            }
+            Set<IMasterFragment> dropped = null;
+            for (int i = 0; i < droppable && total > mBudgetBytes; i++) {
+                if (dropped == null) {
+                    dropped = new HashSet<IMasterFragment>();
+                }
+                total -= FragmentManagerStateCompat.dropFragment(fms, indices[i]);
+                dropped.add(fragments.get(i));
+                report.mEntries[i].mDropped = true;
+            }
+            if (dropped != null) {
+                fragmentMaster.saveRecords(state, dropped);
+                int size = Parcels.sizeOf(state);
+                total += size - stateBytes;
+                stateBytes = size;
+            }
+        }
+        report.mFragmentMasterStateBytes = stateBytes;
+        report.mTotalBytes = total;
+        if (mListener != null) {
+            mListener.onStateSaved(report);
+        }
+    }
+
+    /**
+     * Sizes of the saved state, and what was dropped to fit in the budget.
+     * Sizes are in bytes, as parcelled.
+     */
+    public static final class Report {
+
+        private final int mBudgetBytes;
+
+        private final Entry[] mEntries;
+
+        private int mMeasuredBytes;
+
+        private int mTotalBytes;
+
+        private int mFragmentMasterStateBytes;
+
+        Report(int budgetBytes, int pageCount) {
+            mBudgetBytes = budgetBytes;
+            mEntries = new Entry[pageCount];
+        }
+
+        public int getBudgetBytes() {
+            return mBudgetBytes;
+        }
+
+        /**
+         * Returns the size of the activity's saved state before anything was
+         * dropped.
+         */
+        public int getMeasuredBytes() {
+            return mMeasuredBytes;
+        }
+
+        /**
+         * Returns the size of the activity's saved state after applying the
+         * budget.
+         */
+        public int getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public int getFragmentMasterStateBytes() {
+            return mFragmentMasterStateBytes;
+        }
+
+        public int getPageCount() {
+            return mEntries.length;
+        }
+
+        /**
+         * Returns the entry of the page at index, from bottom to top.
+         */
+        public Entry getEntry(int index) {
+            return mEntries[index];
+        }
+
+        public boolean isOverBudget() {
+            return mTotalBytes > mBudgetBytes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("SavedState { total=").append(mTotalBytes)
+                    .append(", measured=").append(mMeasuredBytes)
+                    .append(", budget=").append(mBudgetBytes)
+                    .append(", fragmentMaster=").append(mFragmentMasterStateBytes);
+            for (int i = 0; i < mEntries.length; i++) {
+                sb.append(", #").append(i).append(' ').append(mEntries[i]);
+            }
+            return sb.append(" }").toString();
+        }
+
+        /**
+         * Saved state of a page.
+         */
+        public static final class Entry {
+
+            private final Class<?> mFragmentClass;
+
+            int mFragmentStateBytes;
+
+            int mRequestBytes;
+
+            boolean mViewStateDropped = false;
+
+            boolean mDropped = false;
+
+            Entry(Class<?> fragmentClass) {
+                mFragmentClass = fragmentClass;
+            }
+
+            public Class<?> getFragmentClass() {
+                return mFragmentClass;
+            }
+
+            /**
+             * Returns the size of the fragment's state saved by
+             * FragmentManager, which includes its Request.
+             */
+            public int getFragmentStateBytes() {
+                return mFragmentStateBytes;
+            }
+
+            public int getRequestBytes() {
+                return mRequestBytes;
+            }
+
+            public boolean isViewStateDropped() {
+                return mViewStateDropped;
+            }
+
+            public boolean isDropped() {
+                return mDropped;
+            }
+
+            @Override
+            public String toString() {
+                return mFragmentClass.getSimpleName()
+                        + " { state=" + mFragmentStateBytes
+                        + ", request=" + mRequestBytes
+                        + (mViewStateDropped ? ", viewStateDropped" : "")
+                        + (mDropped ? ", dropped" : "") + " }";
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * Records frame durations while FragmentMaster's pages are animated by a
+ * PageAnimator, during entering, exiting or dragging, and reports a
+ * {@link Summary} for each transition. Install it by
+ * {@link FragmentMaster#setTransitionJankTracker(TransitionJankTracker)}.
+ * <p/>
+ * Frames are observed by {@link Choreographer}, so it only works on API 16
+ * and above. It does nothing on older versions.
+ */
+public class TransitionJankTracker {
+
+    /**
+     * Receives the summary of each transition.
+     */
+    public interface Listener {
+        void onTransitionMeasured(Summary summary);
+    }
+
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    private final Listener mListener;
+
+    private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+    private boolean mArmed = false;
+
+    private long mLastFrameTimeNanos = 0;
+
+    private long[] mFrameDurations = new long[128];
+
+    private int mFrameCount = 0;
+
+    private Class<?> mPageAnimatorClass;
+
+    private Class<?> mForegroundClass;
+
+    private Class<?> mBackgroundClass;
+
+    private Object mFrameCallback;
+
+    public TransitionJankTracker(Listener listener) {
+        mListener = listener;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Set the expected frame interval. A frame taking more than one and a
+     * half of it is counted as janky. Defaults to 1/60 second.
+     */
+    public void setFrameIntervalNanos(long frameIntervalNanos) {
+        mFrameIntervalNanos = frameIntervalNanos;
+    }
+
+    public long getFrameIntervalNanos() {
+        return mFrameIntervalNanos;
+    }
+
+    /**
+     * Start recording frames of a transition.
+     */
+    void arm(Class<?> pageAnimatorClass, Class<?> foregroundClass, Class<?> backgroundClass) {
+        if (mArmed || !isSupported()) {
+            return;
+        }
+        mArmed = true;
+        mPageAnimatorClass = pageAnimatorClass;
+        mForegroundClass = foregroundClass;
+        mBackgroundClass = backgroundClass;
+        mLastFrameTimeNanos = 0;
+        mFrameCount = 0;
+        if (mFrameCallback == null) {
+            mFrameCallback = new FrameCallbackImpl();
+        }
+        ((FrameCallbackImpl) mFrameCallback).post();
+    }
+
+    /**
+     * Stop recording, and report the summary of the transition.
+     */
+    void disarm() {
+        if (!mArmed) {
+            return;
+        }
+        mArmed = false;
+        ((FrameCallbackImpl) mFrameCallback).remove();
+        if (mFrameCount > 0) {
+            mListener.onTransitionMeasured(new Summary(this));
+        }
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        if (mLastFrameTimeNanos != 0) {
+            if (mFrameCount == mFrameDurations.length) {
+                long[] durations = new long[mFrameCount * 2];
+                System.arraycopy(mFrameDurations, 0, durations, 0, mFrameCount);
+                mFrameDurations = durations;
+            }
+            mFrameDurations[mFrameCount++] = frameTimeNanos - mLastFrameTimeNanos;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameCallbackImpl implements Choreographer.FrameCallback {
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mArmed) {
+                onFrame(frameTimeNanos);
+                post();
+            }
+        }
+    }
+
+    /**
+     * Frame statistics of a transition.
+     */
+    public static final class Summary {
+
+        private final Class<?> mPageAnimatorClass;
+
+        private final Class<?> mForegroundClass;
+
+        private final Class<?> mBackgroundClass;
+
+        private final int mFrameCount;
+
+        private final int mJankyFrameCount;
+
+        private final long mP50Nanos;
+
+        private final long mP95Nanos;
+
+        private final long mMaxNanos;
+
+        Summary(TransitionJankTracker tracker) {
+            mPageAnimatorClass = tracker.mPageAnimatorClass;
+            mForegroundClass = tracker.mForegroundClass;
+            mBackgroundClass = tracker.mBackgroundClass;
+            mFrameCount = tracker.mFrameCount;
+
+            long[] durations = new long[mFrameCount];
+            System.arraycopy(tracker.mFrameDurations, 0, durations, 0, mFrameCount);
+            Arrays.sort(durations);
+            long jankThreshold = tracker.mFrameIntervalNanos * 3 / 2;
+            int janky = 0;
+            for (int i = mFrameCount - 1; i >= 0 && durations[i] > jankThreshold; i--) {
+                janky++;
+            }
+            mJankyFrameCount = janky;
+            mP50Nanos = durations[(mFrameCount - 1) * 50 / 100];
+            mP95Nanos = durations[(mFrameCount - 1) * 95 / 100];
+            mMaxNanos = durations[mFrameCount - 1];
+        }
+
+        public Class<?> getPageAnimatorClass() {
+            return mPageAnimatorClass;
+        }
+
+        /**
+         * Returns the class of the upper fragment in the transition, or null
+         * if it's unknown.
+         */
+        public Class<?> getForegroundClass() {
+            return mForegroundClass;
+        }
+
+        /**
+         * Returns the class of the lower fragment in the transition, or null
+         * if it's unknown.
+         */
+        public Class<?> getBackgroundClass() {
+            return mBackgroundClass;
+        }
+
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        public int getJankyFrameCount() {
+            return mJankyFrameCount;
+        }
+
+        public long getP50Nanos() {
+            return mP50Nanos;
+        }
+
+        public long getP95Nanos() {
+            return mP95Nanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Transition { animator=" + name(mPageAnimatorClass)
+                    + ", foreground=" + name(mForegroundClass)
+                    + ", background=" + name(mBackgroundClass)
+                    + ", frames=" + mFrameCount
+                    + ", janky=" + mJankyFrameCount
+                    + ", p50=" + mP50Nanos / 1000000f + "ms"
+                    + ", p95=" + mP95Nanos / 1000000f + "ms"
+                    + ", max=" + mMaxNanos / 1000000f + "ms }";
+        }
+
+        private static String name(Class<?> clazz) {
+            return clazz == null ? null : clazz.getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Feng Dai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fragmentmaster.app;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.StrictMode;
+import android.util.Log;
+
+/**
+ * Tightens the StrictMode policy of the main thread while a transition is
+ * running, see {@link FragmentMaster#setTransitionStrictModeEnabled(boolean)}.
+ * <p/>
+ * The detections of the transition are added to the disk, network and
+ * custom detections of the app's policy, and violations are only logged by
+ * StrictMode, between the begin and end lines logged here, which name the
+ * fragments of the transition. The policy of the app is restored when the
+ * transition ends, unless the app set another one meanwhile.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+final class TransitionStrictMode {
+
+    private static final String TAG = "FragmentMaster";
+
+    private static final String MASK = "mask=";
+
+    private static final int DETECT_DISK_READS = 0;
+    private static final int DETECT_DISK_WRITES = 1;
+    private static final int DETECT_NETWORK = 2;
+    private static final int DETECT_CUSTOM_SLOW_CALLS = 3;
+    private static final int DETECTION_COUNT = 4;
+
+    // Mask bits of each detection, and of penaltyDeathOnNetwork, learned from
+    // policies built with them. ThreadPolicy has no accessor for them, only
+    // toString shows its mask.
+    private static int[] sDetectionBits;
+
+    private static int sDeathOnNetworkBits;
+
+    private final StrictMode.ThreadPolicy mSavedPolicy;
+
+    // Mask of the policy installed by begin, or null if it's unknown.
+    private final Integer mInstalledMask;
+
+    private final String mAttribution;
+
+    private TransitionStrictMode(StrictMode.ThreadPolicy savedPolicy, Integer installedMask,
+                                 String attribution) {
+        mSavedPolicy = savedPolicy;
+        mInstalledMask = installedMask;
+        mAttribution = attribution;
+    }
+
+    /**
+     * @param primary  The primary fragment when the transition begins.
+     * @param starting The fragment being started, or null.
+     */
+    static TransitionStrictMode begin(IMasterFragment primary, IMasterFragment starting) {
+        StrictMode.ThreadPolicy savedPolicy = StrictMode.getThreadPolicy();
+        // Not built on the saved policy, whose penalties such as death or
+        // dialogs would apply to the detections added here. Its detections
+        // are added one by one instead.
+        StrictMode.ThreadPolicy.Builder builder = new StrictMode.ThreadPolicy.Builder();
+        Integer savedMask = maskOf(savedPolicy);
+        if (savedMask != null) {
+            learnBits();
+            for (int i = 0; i < DETECTION_COUNT; i++) {
+                if (hasBits(savedMask, sDetectionBits[i])) {
+                    detect(builder, i);
+                }
+            }
+            // The platform's default for network access, kept as is.
+            if (hasBits(savedMask, sDeathOnNetworkBits)) {
+                builder.penaltyDeathOnNetwork();
+            }
+        }
+        detect(builder, DETECT_DISK_READS);
+        detect(builder, DETECT_DISK_WRITES);
+        detect(builder, DETECT_NETWORK);
+        detect(builder, DETECT_CUSTOM_SLOW_CALLS);
+        StrictMode.ThreadPolicy policy = builder.penaltyLog().build();
+        StrictMode.setThreadPolicy(policy);
+
+        String attribution = starting != null
+                ? "starting " + name(starting) + " from " + name(primary)
+                : "primary " + name(primary);
+        Log.i(TAG, "Transition StrictMode begins, " + attribution);
+        return new TransitionStrictMode(savedPolicy, maskOf(policy), attribution);
+    }
+
+    void end() {
+        Integer currentMask = maskOf(StrictMode.getThreadPolicy());
+        if (mInstalledMask != null && !mInstalledMask.equals(currentMask)) {
+            // The app set its own policy during the transition, keep it.
+            Log.i(TAG, "Transition StrictMode ends, policy changed by the app, " + mAttribution);
+            return;
+        }
+        StrictMode.setThreadPolicy(mSavedPolicy);
+        Log.i(TAG, "Transition StrictMode ends, " + mAttribution);
+    }
+
+    private static StrictMode.ThreadPolicy.Builder detect(StrictMode.ThreadPolicy.Builder builder,
+                                                          int detection) {
+        switch (detection) {
+            case DETECT_DISK_READS:
+                return builder.detectDiskReads();
+            case DETECT_DISK_WRITES:
+                return builder.detectDiskWrites();
+            case DETECT_NETWORK:
+                return builder.detectNetwork();
+            case DETECT_CUSTOM_SLOW_CALLS:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? builder.detectCustomSlowCalls() : builder;
+            default:
+                return builder;
+        }
+    }
+
+    private static void learnBits() {
+        if (sDetectionBits != null) {
+            return;
+        }
+        int logBits = maskOrZero(new StrictMode.ThreadPolicy.Builder().penaltyLog().build());
+        int[] detectionBits = new int[DETECTION_COUNT];
+        for (int i = 0; i < DETECTION_COUNT; i++) {
+            StrictMode.ThreadPolicy.Builder builder = new StrictMode.ThreadPolicy.Builder();
+            detectionBits[i] = maskOrZero(detect(builder, i).penaltyLog().build()) & ~logBits;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            sDeathOnNetworkBits = maskOrZero(new StrictMode.ThreadPolicy.Builder()
+                    .penaltyLog().penaltyDeathOnNetwork().build()) & ~logBits;
+        }
+        sDetectionBits = detectionBits;
+    }
+
+    private static boolean hasBits(int mask, int bits) {
+        return bits != 0 && (mask & bits) == bits;
+    }
+
+    private static int maskOrZero(StrictMode.ThreadPolicy policy) {
+        Integer mask = maskOf(policy);
+        return mask != null ? mask : 0;
+    }
+
+    /**
+     * Returns the mask of the policy, as shown by its toString, or null if it
+     * can't be read.
+     */
+    private static Integer maskOf(StrictMode.ThreadPolicy policy) {
+        String s = policy.toString();
+        int start = s.indexOf(MASK);
+        if (start < 0) {
+            return null;
+        }
+        start += MASK.length();
+        int end = start;
+        if (end < s.length() && s.charAt(end) == '-') {
+            end++;
+        }
+        while (end < s.length() && Character.isDigit(s.charAt(end))) {
+            end++;
+        }
+        try {
+            return Integer.valueOf(s.substring(start, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String name(IMasterFragment fragment) {
+        return fragment == null ? "none" : fragment.getClass().getName();
+    }
+}